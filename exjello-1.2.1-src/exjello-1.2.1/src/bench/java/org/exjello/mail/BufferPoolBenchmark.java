@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-request garbage of the response copy and drain loops, with a buffer
+ * allocated for every request (as before the {@link BufferPool}) and with
+ * a pooled buffer.  Run with the <code>gc</code> profiler, which the
+ * <code>benchmark</code> profile enables, and compare
+ * <code>gc.alloc.rate.norm</code>: the bytes allocated per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BufferPoolBenchmark {
+
+    /**
+     * Size of the response body; a typical multistatus response, and one
+     * larger than a buffer.
+     */
+    @Param({ "4096", "262144" })
+    public int bodySize;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) ('a' + i % 26);
+    }
+
+    @Benchmark
+    public long allocated() throws IOException {
+        return drain(new ByteArrayInputStream(body),
+                new byte[BufferPool.BUFFER_SIZE]);
+    }
+
+    @Benchmark
+    public long pooled() throws IOException {
+        byte[] buf = BufferPool.acquire();
+        try {
+            return drain(new ByteArrayInputStream(body), buf);
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    private static long drain(InputStream stream, byte[] buf)
+            throws IOException {
+        long total = 0;
+        int count;
+        while ((count = stream.read(buf, 0, buf.length)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Cost of building a BDELETE body with the {@link XmlWriter} and with the
+ * DOM and <code>Transformer</code> it replaced.  Both produce equivalent
+ * documents; compare the time and, with the <code>gc</code> profiler,
+ * <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlWriterBenchmark {
+
+    private static final String DAV_NAMESPACE = "DAV:";
+
+    /**
+     * Number of messages deleted.
+     */
+    @Param({ "10", "10000" })
+    public int messageCount;
+
+    private String[] files;
+
+    @Setup
+    public void setUp() {
+        files = new String[messageCount];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = "Re:%20Status%20report%20" + i + ".EML";
+        }
+    }
+
+    @Benchmark
+    public byte[] dom() throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().newDocument();
+        Element delete = doc.createElementNS(DAV_NAMESPACE, "delete");
+        doc.appendChild(delete);
+        Element target = doc.createElementNS(DAV_NAMESPACE, "target");
+        delete.appendChild(target);
+        for (String file : files) {
+            Element href = doc.createElementNS(DAV_NAMESPACE, "href");
+            target.appendChild(href);
+            href.appendChild(doc.createTextNode(file));
+        }
+        ByteArrayOutputStream collector = new ByteArrayOutputStream();
+        Transformer transformer =
+                TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+        transformer.transform(new DOMSource(doc), new StreamResult(collector));
+        return collector.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] xmlWriter() {
+        XmlWriter writer = new XmlWriter(DAV_NAMESPACE);
+        writer.start(DAV_NAMESPACE, "delete").start(DAV_NAMESPACE, "target");
+        for (String file : files) {
+            writer.element(DAV_NAMESPACE, "href", file);
+        }
+        return writer.end().end().toByteArray();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+/**
+ * Process-wide pool running the asynchronous store and transport
+ * operations.  The pool is sized from the
+ * <code>org.exjello.mail.asyncthreads</code> property of the first session
+ * to use it; its threads are daemons and, on Java 6 and later, exit after
+ * a minute without work.
+ */
+final class AsyncExecutor {
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private static ExecutorService executor;
+
+    private static int threadCount;
+
+    private AsyncExecutor() { }
+
+    public static synchronized ExecutorService getExecutor(Session session) {
+        if (executor == null) {
+            int threads = DEFAULT_THREADS;
+            String threadsString = session.getProperty(
+                    ExchangeConstants.ASYNC_THREADS_PROPERTY);
+            if (threadsString != null) {
+                try {
+                    threads = Integer.parseInt(threadsString);
+                } catch (NumberFormatException ex) {
+                    throw new NumberFormatException(
+                            "Invalid async thread count: " + threadsString);
+                }
+                if (threads <= 0) {
+                    throw new NumberFormatException(
+                            "Invalid async thread count: " + threadsString);
+                }
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread;
+                    synchronized (AsyncExecutor.class) {
+                        thread = new Thread(task,
+                                "exjello-async-" + (++threadCount));
+                    }
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                // Java 6 and later; on Java 5 idle threads are kept
+                ThreadPoolExecutor.class.getMethod("allowCoreThreadTimeOut",
+                        boolean.class).invoke(pool, Boolean.TRUE);
+            } catch (Exception ignore) { }
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Submits a task to the pool, notifying the callback (if any) on the
+     * pool thread once the task has completed or failed.
+     */
+    public static <T> Future<T> submit(Session session,
+            final Callable<T> task, final AsyncCallback<? super T> callback) {
+        if (callback == null) return getExecutor(session).submit(task);
+        return getExecutor(session).submit(new Callable<T>() {
+            public T call() throws Exception {
+                T result;
+                try {
+                    result = task.call();
+                } catch (Exception ex) {
+                    callback.failed(ex);
+                    throw ex;
+                }
+                callback.completed(result);
+                return result;
+            }
+        });
+    }
+
+}
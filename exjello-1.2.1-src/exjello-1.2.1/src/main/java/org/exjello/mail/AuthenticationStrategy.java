@@ -0,0 +1,125 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The way credentials are presented to an Outlook Web Access server.  The
+ * strategy that last worked for each server is remembered (and, when a
+ * session cache is configured, persisted alongside it), so that sign-on can
+ * go straight to it instead of probing with an OPTIONS request first.
+ */
+enum AuthenticationStrategy {
+
+    /**
+     * Credentials are presented through HTTP authentication (Basic or NTLM)
+     * on each request.
+     */
+    HTTP,
+
+    /**
+     * Credentials are posted to the forms-based logon, which returns
+     * session cookies.
+     */
+    FORMS;
+
+    private static final String STRATEGIES_FILE = "authentication.properties";
+
+    private static final Map<String, AuthenticationStrategy> STRATEGIES =
+            new ConcurrentHashMap<String, AuthenticationStrategy>();
+
+    private static final Set<File> LOADED = new HashSet<File>();
+
+    /**
+     * Returns the strategy last known to work for the server, or
+     * <code>null</code> if it has to be probed.
+     */
+    public static AuthenticationStrategy lookup(String server,
+            SessionCache cache) {
+        if (cache != null) load(cache);
+        return STRATEGIES.get(server);
+    }
+
+    public static void remember(String server,
+            AuthenticationStrategy strategy, SessionCache cache) {
+        if (STRATEGIES.put(server, strategy) != strategy) save(cache);
+    }
+
+    public static void forget(String server, SessionCache cache) {
+        if (STRATEGIES.remove(server) != null) save(cache);
+    }
+
+    private static void load(SessionCache cache) {
+        File directory = cache.getDirectory();
+        synchronized (LOADED) {
+            if (!LOADED.add(directory)) return;
+        }
+        File file = new File(directory, STRATEGIES_FILE);
+        if (!file.isFile()) return;
+        Properties properties = new Properties();
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+            Enumeration<?> servers = properties.propertyNames();
+            while (servers.hasMoreElements()) {
+                String server = (String) servers.nextElement();
+                try {
+                    AuthenticationStrategy strategy =
+                            valueOf(properties.getProperty(server));
+                    if (!STRATEGIES.containsKey(server)) {
+                        STRATEGIES.put(server, strategy);
+                    }
+                } catch (IllegalArgumentException ignore) { }
+            }
+        } catch (Exception ignore) { }
+    }
+
+    private static void save(SessionCache cache) {
+        if (cache == null) return;
+        Properties properties = new Properties();
+        for (Map.Entry<String, AuthenticationStrategy> entry :
+                STRATEGIES.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().name());
+        }
+        try {
+            cache.write(new File(cache.getDirectory(), STRATEGIES_FILE),
+                    properties, "exJello authentication strategies");
+        } catch (Exception ignore) { }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide pool of the 64 KB buffers used to copy and drain response
+ * bodies.  A buffer is borrowed for the duration of one copy loop and
+ * returned afterwards; at most {@link #MAX_POOLED} idle buffers are kept,
+ * so a burst of concurrent requests allocates the rest and leaves them to
+ * the garbage collector.
+ */
+final class BufferPool {
+
+    public static final int BUFFER_SIZE = 65536;
+
+    private static final int MAX_POOLED = 16;
+
+    private static final Queue<byte[]> BUFFERS =
+            new ConcurrentLinkedQueue<byte[]>();
+
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() { }
+
+    public static byte[] acquire() {
+        byte[] buffer = BUFFERS.poll();
+        if (buffer == null) return new byte[BUFFER_SIZE];
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()}; the caller must not
+     * use it afterwards.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) return;
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        BUFFERS.offer(buffer);
+    }
+
+}
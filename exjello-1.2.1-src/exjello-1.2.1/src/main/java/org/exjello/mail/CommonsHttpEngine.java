@@ -0,0 +1,219 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetAddress;
+import java.net.URL;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NTCredentials;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+
+import org.apache.commons.httpclient.auth.AuthScope;
+
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.OptionsMethod;
+
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * {@link HttpEngine} backed by Jakarta Commons HttpClient, using a pooled
+ * multi-threaded connection manager.  This is the default engine.
+ */
+class CommonsHttpEngine implements HttpEngine {
+
+    private String server;
+
+    private HttpClient client;
+
+    private MultiThreadedHttpConnectionManager connectionManager;
+
+    private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+    public void configure(String server, int timeout, int connectionTimeout,
+            InetAddress localAddress, int maxConnectionsPerHost,
+                    int maxTotalConnections, int idleTimeout,
+                            boolean staleCheck) {
+        this.server = server;
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setStaleCheckingEnabled(staleCheck);
+        if (connectionTimeout > 0) {
+            params.setConnectionTimeout(connectionTimeout);
+        }
+        client = new HttpClient(connectionManager);
+        if (timeout > 0) client.getParams().setSoTimeout(timeout);
+        if (localAddress != null) {
+            client.getHostConfiguration().setLocalAddress(localAddress);
+        }
+        if (idleTimeout > 0) {
+            idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+            idleConnectionTimeoutThread.setName("exjello-idle-" + server);
+            idleConnectionTimeoutThread.setConnectionTimeout(idleTimeout);
+            idleConnectionTimeoutThread.setTimeoutInterval(
+                    Math.max(1000, idleTimeout / 2));
+            idleConnectionTimeoutThread.addConnectionManager(
+                    connectionManager);
+            idleConnectionTimeoutThread.start();
+        }
+    }
+
+    public void setCredentials(String username, String password)
+            throws Exception {
+        URL serverUrl = new URL(server);
+        String host = serverUrl.getHost();
+        int port = serverUrl.getPort();
+        if (port == -1) port = serverUrl.getDefaultPort();
+        AuthScope authScope = new AuthScope(host, port);
+        int index = username.indexOf('\\');
+        if (index < 0) {
+            client.getState().setCredentials(authScope,
+                    new UsernamePasswordCredentials(username, password));
+        } else {
+            // Try to connect with NTLM authentication
+            String domainUser = username.substring(index + 1);
+            String domain = username.substring(0, index);
+            client.getState().setCredentials(authScope,
+                    new NTCredentials(domainUser, password, host, domain));
+        }
+    }
+
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        String name = request.getMethod();
+        HttpMethodBase method;
+        if ("GET".equals(name)) {
+            method = new GetMethod(request.getUri());
+            method.setFollowRedirects(false);
+        } else if ("OPTIONS".equals(name)) {
+            method = new OptionsMethod(request.getUri());
+        } else {
+            ExchangeMethod exchangeMethod =
+                    new ExchangeMethod(name, request.getUri());
+            if (request.getBody() != null) {
+                exchangeMethod.setRequestEntity(new ByteArrayRequestEntity(
+                        request.getBody(), request.getContentType()));
+            } else if (request.getBodyFile() != null) {
+                exchangeMethod.setRequestEntity(new FileRequestEntity(
+                        request.getBodyFile(), request.getContentType()));
+            }
+            for (int i = 0; i < request.getHeaderCount(); i++) {
+                exchangeMethod.addHeader(request.getHeaderName(i),
+                        request.getHeaderValue(i));
+            }
+            method = exchangeMethod;
+        }
+        if (!(method instanceof ExchangeMethod)) {
+            for (int i = 0; i < request.getHeaderCount(); i++) {
+                method.addRequestHeader(request.getHeaderName(i),
+                        request.getHeaderValue(i));
+            }
+        }
+        try {
+            return new CommonsHttpResponse(method,
+                    client.executeMethod(method));
+        } catch (IOException ex) {
+            method.releaseConnection();
+            throw ex;
+        }
+    }
+
+    public SessionCookie[] getCookies() {
+        Cookie[] cookies = client.getState().getCookies();
+        SessionCookie[] sessionCookies = new SessionCookie[cookies.length];
+        for (int i = 0; i < cookies.length; i++) {
+            Cookie cookie = cookies[i];
+            sessionCookies[i] = new SessionCookie(cookie.getName(),
+                    cookie.getValue(), cookie.getDomain(), cookie.getPath(),
+                            cookie.getExpiryDate(), cookie.getSecure());
+        }
+        return sessionCookies;
+    }
+
+    public void addCookies(SessionCookie[] cookies) {
+        for (SessionCookie cookie : cookies) {
+            client.getState().addCookie(new Cookie(cookie.getDomain(),
+                    cookie.getName(), cookie.getValue(), cookie.getPath(),
+                            cookie.getExpires(), cookie.isSecure()));
+        }
+    }
+
+    public void clearCookies() {
+        client.getState().clearCookies();
+    }
+
+    public void shutdown() {
+        if (idleConnectionTimeoutThread != null) {
+            idleConnectionTimeoutThread.shutdown();
+        }
+        connectionManager.shutdown();
+    }
+
+    private static class CommonsHttpResponse implements HttpResponse {
+
+        private final HttpMethodBase method;
+
+        private final int status;
+
+        public CommonsHttpResponse(HttpMethodBase method, int status) {
+            this.method = method;
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getHeader(String name) {
+            Header header = method.getResponseHeader(name);
+            return (header == null) ? null : header.getValue();
+        }
+
+        public InputStream getBody() throws IOException {
+            return method.getResponseBodyAsStream();
+        }
+
+        public void release() {
+            method.releaseConnection();
+        }
+
+        public void abort() {
+            method.abort();
+            method.releaseConnection();
+        }
+
+    }
+
+}
@@ -25,64 +25,73 @@ package org.exjello.mail;
 import static org.exjello.mail.ExchangeConstants.CONNECTION_TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.DELETE_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.FROM_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.IDLE_TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.LIMIT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.LOCAL_ADDRESS_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.MAILBOX_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.MAX_CONNECTIONS_PER_HOST_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.MAX_TOTAL_CONNECTIONS_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.PORT_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.SESSION_CACHE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.SORT_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.SESSION_CACHE_TTL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.HTTP_ENGINE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.SESSION_TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.SSL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.STALE_CHECK_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.COMPRESSION_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.DRAIN_THRESHOLD_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.PAGE_SIZE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.MESSAGE_CACHE_SIZE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.REFRESH_INTERVAL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.WATCH_INTERVAL_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.UNFILTERED_PROPERTY;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.mail.Address;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.NTCredentials;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
-import org.apache.commons.httpclient.methods.OptionsMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -111,6 +120,10 @@ class ExchangeConnection {
 
 	private static final String SIGN_ON_URI = "/exchweb/bin/auth/owaauth.dll";
 
+	private static final String AUTH_URI_PREFIX = "/exchweb/bin/auth/";
+
+	private static final int LOGIN_TIMEOUT_STATUS = 440;
+
 	private static final String DEBUG_PASSWORD_PROPERTY = "org.exjello.mail.debug.password";
 
 	private static final String HTTPMAIL_NAMESPACE = "urn:schemas:httpmail:";
@@ -119,6 +132,20 @@ class ExchangeConnection {
 
 	private static final String DAV_NAMESPACE = "DAV:";
 
+	private static final String PROPTAG_NAMESPACE = "http://schemas.microsoft.com/mapi/proptag/";
+
+	/**
+	 * PR_INTERNET_ARTICLE_NUMBER, assigned by the store in increasing order
+	 * and never reused within a folder.
+	 */
+	private static final String ARTICLE_NUMBER_PROPTAG = "x0e230003";
+
+	/**
+	 * Keys by which folder listings may be sorted: the key's name, the
+	 * property sorted on and the SQL type of its values.
+	 */
+	private static final String[][] SORT_KEYS = new String[][] { { "creationdate", "DAV:creationdate", "dateTime" }, { "datereceived", "urn:schemas:httpmail:datereceived", "dateTime" }, { "size", "DAV:getcontentlength", "int" } };
+
 	private static final String PROPFIND_METHOD = "PROPFIND";
 
 	private static final String SEARCH_METHOD = "SEARCH";
@@ -127,10 +154,18 @@ class ExchangeConnection {
 
 	private static final String BPROPPATCH_METHOD = "BPROPPATCH";
 
+	private static final String BPROPFIND_METHOD = "BPROPFIND";
+
 	private static final String PROPPATCH_METHOD = "PROPPATCH";
 
 	private static final String MOVE_METHOD = "MOVE";
 
+	private static final String SUBSCRIBE_METHOD = "SUBSCRIBE";
+
+	private static final String POLL_METHOD = "POLL";
+
+	private static final String UNSUBSCRIBE_METHOD = "UNSUBSCRIBE";
+
 	private static final String MESSAGE_CONTENT_TYPE = "message/rfc822";
 
 	private static final String XML_CONTENT_TYPE = "text/xml; charset=\"UTF-8\"";
@@ -142,17 +177,75 @@ class ExchangeConnection {
 
 	private static final int HTTPS_PORT = 443;
 
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+	private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+
+	private static final int DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private static final long DEFAULT_SESSION_TIMEOUT = 300000;
+
+	private static final long DEFAULT_SESSION_CACHE_TTL = 3600000;
+
+	private static final long DEFAULT_DRAIN_THRESHOLD = 65536;
+
+	private static final int DEFAULT_MESSAGE_CACHE_SIZE = 1000;
+
+	private static final int FETCH_BATCH_SIZE = 1000;
+
+	/**
+	 * Message headers prefetched by {@link #fetch(List)}, as
+	 * urn:schemas:mailheader: property names and the corresponding header
+	 * names.
+	 */
+	private static final String[][] FETCHED_HEADERS = new String[][] { { "from", "From" }, { "sender", "Sender" }, { "reply-to", "Reply-To" }, { "to", "To" }, { "cc", "Cc" }, { "subject", "Subject" }, { "date", "Date" }, { "message-id", "Message-ID" }, { "in-reply-to", "In-Reply-To" }, { "content-type", "Content-Type" } };
+
+	private static final String[][] FETCHED_PROPERTIES;
+
+	private static final String[][] FOLDER_PROPERTIES = new String[][] { { DAV_NAMESPACE, "visiblecount" }, { DAV_NAMESPACE, "getlastmodified" }, { HTTPMAIL_NAMESPACE, "unreadcount" }, { DAV_NAMESPACE, "creationdate" } };
+
+	private static final String[][] MAILBOX_PROPERTIES = new String[][] { { HTTPMAIL_NAMESPACE, "inbox" }, { HTTPMAIL_NAMESPACE, "drafts" }, { HTTPMAIL_NAMESPACE, "sendmsg" }, { HTTPMAIL_NAMESPACE, "outbox" }, { HTTPMAIL_NAMESPACE, "sentitems" } };
+
+	static {
+		FETCHED_PROPERTIES = new String[FETCHED_HEADERS.length + 2][];
+		for (int i = 0; i < FETCHED_HEADERS.length; i++) {
+			FETCHED_PROPERTIES[i] = new String[] { MAILHEADER_NAMESPACE, FETCHED_HEADERS[i][0] };
+		}
+		FETCHED_PROPERTIES[FETCHED_HEADERS.length] = new String[] { HTTPMAIL_NAMESPACE, "read" };
+		FETCHED_PROPERTIES[FETCHED_HEADERS.length + 1] = new String[] { DAV_NAMESPACE, "getcontentlength" };
+	}
+
+	private static final String COMMONS_HTTP_ENGINE = "commons";
+
+	private static final String JDK_HTTP_ENGINE = "jdk";
+
+	private static final String JDK_HTTP_ENGINE_CLASS = "org.exjello.mail.JdkHttpEngine";
+
 	private static final boolean[] ALLOWED_CHARS = new boolean[128];
 
 	private static final char[] HEXABET = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
 
-	private static byte[] findInboxEntity;
+	private static final String FIND_INBOX_ENTITY = "findInbox";
+
+	private static final String PROBE_ENTITY = "probe";
 
-	private static byte[] unreadInboxEntity;
+	/**
+	 * Serialized entities that do not vary between requests, keyed by name.
+	 * Entities are shared and must not be modified.
+	 */
+	private static final ConcurrentMap<String, byte[]> CONSTANT_ENTITIES = new ConcurrentHashMap<String, byte[]>();
 
-	private static byte[] allInboxEntity;
+	/**
+	 * Listing SQL, keyed by the filter and sort options it was compiled
+	 * from.
+	 */
+	private static final ConcurrentMap<String, String> LISTING_QUERIES = new ConcurrentHashMap<String, String>();
 
-	private static byte[] customInboxEntity;
+	/**
+	 * Serialized listing entities, keyed like the SQL they serialize.
+	 * Entities are shared and must not be modified.
+	 */
+	private static final ConcurrentMap<String, byte[]> LISTING_ENTITIES = new ConcurrentHashMap<String, byte[]>();
 
 	private final Session session;
 
@@ -170,6 +263,32 @@ class ExchangeConnection {
 
 	private final InetAddress localAddress;
 
+	private final int maxConnectionsPerHost;
+
+	private final int maxTotalConnections;
+
+	private final int idleTimeout;
+
+	private final boolean staleCheck;
+
+	private final boolean compression;
+
+	private final long drainThreshold;
+
+	private final int pageSize;
+
+	private final int messageCacheSize;
+
+	private final long refreshInterval;
+
+	private final long watchInterval;
+
+	private final long sessionTimeout;
+
+	private final SessionCache sessionCache;
+
+	private final String httpEngine;
+
 	private final boolean unfiltered;
 
 	/* Mirco */
@@ -182,17 +301,16 @@ class ExchangeConnection {
 
 	private final int limit;
 
-	private HttpClient client;
+	private final String[] sortKey;
 
-	private String inbox;
+	private final boolean sortDescending;
 
-	private String drafts;
+	private final Object connectLock = new Object();
 
-	private String submissionUri;
+	private volatile ExchangeSession exchangeSession;
 
-	private String sentitems;
-
-	private String outbox;
+	// watchers of this connection's open folders, stopped when it is closed
+	private final ConcurrentMap<FolderWatcher, Boolean> watchers = new ConcurrentHashMap<FolderWatcher, Boolean>();
 
 	static {
 		// a - z
@@ -252,6 +370,21 @@ class ExchangeConnection {
 				throw new NumberFormatException("Invalid limit specified: " + limitString);
 			}
 		}
+		String[] sortKey = SORT_KEYS[0];
+		boolean sortDescending = false;
+		String sortString = session.getProperty(SORT_PROPERTY);
+		if (sortString != null) {
+			String[] sort = sortString.trim().split("\\s+");
+			sortKey = null;
+			for (String[] key : SORT_KEYS) {
+				if (key[0].equalsIgnoreCase(sort[0]))
+					sortKey = key;
+			}
+			if (sortKey == null || sort.length > 2 || (sort.length == 2 && !"asc".equalsIgnoreCase(sort[1]) && !"desc".equalsIgnoreCase(sort[1]))) {
+				throw new IllegalArgumentException("Invalid sort specified: " + sortString);
+			}
+			sortDescending = (sort.length == 2 && "desc".equalsIgnoreCase(sort[1]));
+		}
 		try {
 			URL url = new URL(host);
 			// if parsing succeeded, then strip out the components and use
@@ -365,6 +498,110 @@ class ExchangeConnection {
 				throw new UnknownHostException("Invalid local address specified: " + localAddressString);
 			}
 		}
+		int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+		String poolString = session.getProperty(prefix + MAX_CONNECTIONS_PER_HOST_PROPERTY);
+		if (poolString != null) {
+			try {
+				maxConnectionsPerHost = Integer.parseInt(poolString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid maximum connections per host: " + poolString);
+			}
+		}
+		int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+		poolString = session.getProperty(prefix + MAX_TOTAL_CONNECTIONS_PROPERTY);
+		if (poolString != null) {
+			try {
+				maxTotalConnections = Integer.parseInt(poolString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid maximum total connections: " + poolString);
+			}
+		}
+		if (maxConnectionsPerHost < 1 || maxTotalConnections < 1) {
+			throw new IllegalArgumentException("Connection limits must be positive.");
+		}
+		int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		timeoutString = session.getProperty(prefix + IDLE_TIMEOUT_PROPERTY);
+		if (timeoutString != null) {
+			try {
+				idleTimeout = Integer.parseInt(timeoutString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid idle timeout value: " + timeoutString);
+			}
+		}
+		String staleCheckString = session.getProperty(prefix + STALE_CHECK_PROPERTY);
+		boolean staleCheck = (staleCheckString == null) || Boolean.parseBoolean(staleCheckString);
+		boolean compression = Boolean.parseBoolean(session.getProperty(prefix + COMPRESSION_PROPERTY));
+		long drainThreshold = DEFAULT_DRAIN_THRESHOLD;
+		String drainThresholdString = session.getProperty(prefix + DRAIN_THRESHOLD_PROPERTY);
+		if (drainThresholdString != null) {
+			try {
+				drainThreshold = Long.parseLong(drainThresholdString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid drain threshold value: " + drainThresholdString);
+			}
+		}
+		int pageSize = 0;
+		String pageSizeString = session.getProperty(prefix + PAGE_SIZE_PROPERTY);
+		if (pageSizeString != null) {
+			try {
+				pageSize = Integer.parseInt(pageSizeString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid page size value: " + pageSizeString);
+			}
+		}
+		int messageCacheSize = DEFAULT_MESSAGE_CACHE_SIZE;
+		String messageCacheSizeString = session.getProperty(prefix + MESSAGE_CACHE_SIZE_PROPERTY);
+		if (messageCacheSizeString != null) {
+			try {
+				messageCacheSize = Integer.parseInt(messageCacheSizeString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid message cache size value: " + messageCacheSizeString);
+			}
+		}
+		long refreshInterval = 0;
+		String refreshIntervalString = session.getProperty(prefix + REFRESH_INTERVAL_PROPERTY);
+		if (refreshIntervalString != null) {
+			try {
+				refreshInterval = Long.parseLong(refreshIntervalString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid refresh interval value: " + refreshIntervalString);
+			}
+		}
+		long watchInterval = 0;
+		String watchIntervalString = session.getProperty(prefix + WATCH_INTERVAL_PROPERTY);
+		if (watchIntervalString != null) {
+			try {
+				watchInterval = Long.parseLong(watchIntervalString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid watch interval value: " + watchIntervalString);
+			}
+		}
+		long sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+		timeoutString = session.getProperty(SESSION_TIMEOUT_PROPERTY);
+		if (timeoutString != null) {
+			try {
+				sessionTimeout = Long.parseLong(timeoutString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid session timeout value: " + timeoutString);
+			}
+		}
+		SessionCache sessionCache = null;
+		String sessionCacheString = session.getProperty(SESSION_CACHE_PROPERTY);
+		if (sessionCacheString != null && !"".equals(sessionCacheString)) {
+			long sessionCacheTtl = DEFAULT_SESSION_CACHE_TTL;
+			timeoutString = session.getProperty(SESSION_CACHE_TTL_PROPERTY);
+			if (timeoutString != null) {
+				try {
+					sessionCacheTtl = Long.parseLong(timeoutString);
+				} catch (NumberFormatException ex) {
+					throw new NumberFormatException("Invalid session cache time to live: " + timeoutString);
+				}
+			}
+			sessionCache = new SessionCache(new File(sessionCacheString), sessionCacheTtl);
+		}
+		String httpEngine = session.getProperty(HTTP_ENGINE_PROPERTY);
+		if (httpEngine == null || "".equals(httpEngine))
+			httpEngine = COMMONS_HTTP_ENGINE;
 		if (mailbox == null) {
 			throw new IllegalStateException("No mailbox specified.");
 		}
@@ -376,6 +613,7 @@ class ExchangeConnection {
 			debugStream.println("Mailbox:\t" + mailbox);
 			debugStream.print("Options:\t");
 			debugStream.print((limit > 0) ? "Message Limit = " + limit : "Unlimited Messages");
+			debugStream.print("; Sorted by " + sortKey[0] + (sortDescending ? " descending" : " ascending"));
 			debugStream.print(unfiltered ? "; Unfiltered" : "; Filtered to Unread");
 			debugStream.print(filterLastCheck == null || "".equals(filterLastCheck) ? "; NO filterLastCheck" : "; Filtered after " + filterLastCheck);
 			debugStream.print(filterFrom == null || "".equals(filterFrom) ? "; NO filterFromDomain" : "; Filtered from " + filterFrom);
@@ -388,11 +626,33 @@ class ExchangeConnection {
 			if (connectionTimeout > 0) {
 				debugStream.println("Connection timeout:\t" + connectionTimeout + " ms");
 			}
+			debugStream.println("Connection pool:\t" + maxConnectionsPerHost + " per host, " + maxTotalConnections + " total");
+			if (idleTimeout > 0) {
+				debugStream.println("Idle timeout:\t" + idleTimeout + " ms");
+			}
+			if (compression) {
+				debugStream.println("Compression:\tgzip, deflate");
+			}
+			if (pageSize > 0) {
+				debugStream.println("Page size:\t" + pageSize + " messages");
+			}
+			if (refreshInterval > 0) {
+				debugStream.println("Refresh interval:\t" + refreshInterval + " ms");
+			}
+			if (watchInterval > 0) {
+				debugStream.println("Watch interval:\t" + watchInterval + " ms");
+			}
+			debugStream.println(messageCacheSize > 0 ? "Message cache:\t" + messageCacheSize + " messages" : "Message cache:\tunbounded");
+			debugStream.println(sessionTimeout > 0 ? "Session sharing:\t" + sessionTimeout + " ms" : "Session sharing:\tdisabled");
+			debugStream.println("HTTP engine:\t" + httpEngine);
+			if (sessionCache != null) {
+				debugStream.println("Session cache:\t" + sessionCache.getDirectory());
+			}
 		}
-		return new ExchangeConnection(session, server, mailbox, username, password, timeout, connectionTimeout, localAddress, unfiltered, delete, limit, filterLastCheck, filterFrom, filterNotFrom, filterTo);
+		return new ExchangeConnection(session, server, mailbox, username, password, timeout, connectionTimeout, localAddress, maxConnectionsPerHost, maxTotalConnections, idleTimeout, staleCheck, compression, drainThreshold, pageSize, messageCacheSize, refreshInterval, watchInterval, sessionTimeout, sessionCache, httpEngine, unfiltered, delete, limit, sortKey, sortDescending, filterLastCheck, filterFrom, filterNotFrom, filterTo);
 	}
 
-	private ExchangeConnection(Session session, String server, String mailbox, String username, String password, int timeout, int connectionTimeout, InetAddress localAddress, boolean unfiltered, boolean delete, int limit, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo) {
+	private ExchangeConnection(Session session, String server, String mailbox, String username, String password, int timeout, int connectionTimeout, InetAddress localAddress, int maxConnectionsPerHost, int maxTotalConnections, int idleTimeout, boolean staleCheck, boolean compression, long drainThreshold, int pageSize, int messageCacheSize, long refreshInterval, long watchInterval, long sessionTimeout, SessionCache sessionCache, String httpEngine, boolean unfiltered, boolean delete, int limit, String[] sortKey, boolean sortDescending, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo) {
 		this.session = session;
 		this.server = server;
 		this.mailbox = mailbox;
@@ -401,9 +661,24 @@ class ExchangeConnection {
 		this.timeout = timeout;
 		this.connectionTimeout = connectionTimeout;
 		this.localAddress = localAddress;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.maxTotalConnections = maxTotalConnections;
+		this.idleTimeout = idleTimeout;
+		this.staleCheck = staleCheck;
+		this.compression = compression;
+		this.drainThreshold = drainThreshold;
+		this.pageSize = pageSize;
+		this.messageCacheSize = messageCacheSize;
+		this.refreshInterval = refreshInterval;
+		this.watchInterval = watchInterval;
+		this.sessionTimeout = sessionTimeout;
+		this.sessionCache = sessionCache;
+		this.httpEngine = httpEngine;
 		this.unfiltered = unfiltered;
 		this.delete = delete;
 		this.limit = limit;
+		this.sortKey = sortKey;
+		this.sortDescending = sortDescending;
 		/* Mirco */
 		this.filterLastCheck = filterLastCheck;
 		this.filterFrom = filterFrom;
@@ -412,60 +687,316 @@ class ExchangeConnection {
 	}
 
 	public void connect() throws Exception {
-		synchronized (this) {
-			inbox = null;
-			drafts = null;
-			submissionUri = null;
-			sentitems = null;
-			outbox = null;
+		synchronized (connectLock) {
+			close();
+			ExchangeSession exchangeSession = SessionRegistry.acquire(this);
+			this.exchangeSession = exchangeSession;
 			try {
-				signOn();
+				synchronized (exchangeSession.getSignOnLock()) {
+					if (exchangeSession.getFolders() != null) {
+						if (session.getDebug()) {
+							session.getDebugOut().println("Reusing signed-on session for " + mailbox + ".");
+						}
+					} else if (!restoreSession(exchangeSession)) {
+						exchangeSession.setFolders(signOn());
+						saveSession(exchangeSession);
+					}
+				}
 			} catch (Exception ex) {
-				inbox = null;
-				drafts = null;
-				submissionUri = null;
-				sentitems = null;
-				outbox = null;
+				close();
 				throw ex;
 			}
 		}
 	}
 
-	public List<String> getMessages(String name) throws Exception {
-		final List<String> messages = new ArrayList<String>();
+	/**
+	 * Releases the connection's session, first stopping the watchers of any
+	 * folders still open on it.
+	 */
+	public void close() {
+		for (FolderWatcher watcher : new ArrayList<FolderWatcher>(watchers.keySet())) {
+			watcher.cancel();
+		}
+		synchronized (connectLock) {
+			ExchangeSession exchangeSession = this.exchangeSession;
+			this.exchangeSession = null;
+			if (exchangeSession != null)
+				SessionRegistry.release(exchangeSession);
+		}
+	}
+
+	Session getSession() {
+		return session;
+	}
+
+	String getServer() {
+		return server;
+	}
+
+	String getUsername() {
+		return username;
+	}
+
+	String getPassword() {
+		return password;
+	}
+
+	String getMailbox() {
+		return mailbox;
+	}
+
+	long getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * Returns the settings the HTTP engine is configured from; only
+	 * connections with equal settings may share an engine, and with it a
+	 * session.
+	 */
+	String getEngineSettings() {
+		return httpEngine + ',' + timeout + ',' + connectionTimeout + ',' + localAddress + ',' + maxConnectionsPerHost + ',' + maxTotalConnections + ',' + idleTimeout + ',' + staleCheck;
+	}
 
+	ExchangeSession createSession() throws Exception {
+		HttpEngine engine;
+		if (COMMONS_HTTP_ENGINE.equals(httpEngine)) {
+			engine = new CommonsHttpEngine();
+		} else {
+			String className = JDK_HTTP_ENGINE.equals(httpEngine) ? JDK_HTTP_ENGINE_CLASS : httpEngine;
+			try {
+				engine = (HttpEngine) Class.forName(className).getDeclaredConstructor().newInstance();
+			} catch (ClassNotFoundException ex) {
+				throw new IllegalStateException("HTTP engine not available: " + httpEngine, ex);
+			} catch (InvocationTargetException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof Exception) throw (Exception) cause;
+				throw (Error) cause;
+			}
+		}
+		engine.configure(server, timeout, connectionTimeout, localAddress, maxConnectionsPerHost, maxTotalConnections, idleTimeout, staleCheck);
+		return new ExchangeSession(server, username, mailbox, password, getEngineSettings(), sessionTimeout, engine);
+	}
+
+	public MessagePage getMessages(String name) throws Exception {
 		/* by default we list inbox */
-		String currentFolder = inbox;
-		if (name.equalsIgnoreCase(ExchangeFolder.INBOX)) {
-			currentFolder = inbox;
-		} else if (name.equalsIgnoreCase(ExchangeFolder.SENTITEMS)) {
-			currentFolder = sentitems;
-		} else if (name.equalsIgnoreCase(ExchangeFolder.OUTBOX)) {
-			currentFolder = outbox;
-		} else if (name.equalsIgnoreCase(ExchangeFolder.DRAFT)) {
-			currentFolder = drafts;
+		String currentFolder = getFolders().getFolder(name);
+		ListingHandler handler = new ListingHandler();
+		listFolder(handler, currentFolder, (limit > 0) ? "rows=0-" + (limit - 1) : null, createListingEntity());
+		return handler.createPage(handler.getMessages().size());
+	}
+
+	/**
+	 * Returns the largest number of messages a folder listing holds, or 0
+	 * if listings are not limited.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the number of messages listed per request, or 0 if folders
+	 * are listed in full when opened.
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Returns the number of messages an open folder keeps, or 0 or less if
+	 * it keeps them all.
+	 */
+	public int getMessageCacheSize() {
+		return messageCacheSize;
+	}
+
+	/**
+	 * Returns the minimum time in milliseconds between refreshes of an open
+	 * folder's message count, or 0 if the count is not refreshed.
+	 */
+	public long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	/**
+	 * Returns the interval in milliseconds at which open folders are watched
+	 * for new messages in the background, or 0 if they are not.
+	 */
+	public long getWatchInterval() {
+		return watchInterval;
+	}
+
+	void addWatcher(FolderWatcher watcher) {
+		watchers.put(watcher, Boolean.TRUE);
+	}
+
+	void removeWatcher(FolderWatcher watcher) {
+		watchers.remove(watcher);
+	}
+
+	/**
+	 * Returns the UID validity of the named folder.  UIDs are article
+	 * numbers, which the server never reassigns within a folder, so the
+	 * validity only needs to change when the folder itself is replaced; it
+	 * is the folder's creation time in seconds.  Should the server not
+	 * report that, it falls back to a value derived from the folder's URL.
+	 */
+	public long getUidValidity(String name) throws Exception {
+		String created = getFolderProperties(name).get(DAV_NAMESPACE + "creationdate");
+		if (created != null && created.length() >= 19) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			try {
+				long seconds = format.parse(created.substring(0, 19)).getTime() / 1000;
+				if (seconds > 0 && seconds <= 0xffffffffL)
+					return seconds;
+			} catch (ParseException ignore) {
+			}
 		}
+		return getFolders().getFolder(name).hashCode() & 0x7fffffffL;
+	}
 
-		listFolder(new DefaultHandler() {
-			private final StringBuilder content = new StringBuilder();
+	/**
+	 * Lists the window of at most <code>count</code> messages starting at
+	 * the zero-based index <code>start</code>.  The message limit, if any,
+	 * caps the listing as a whole, as it does an unpaged listing.  If the
+	 * server does not report the total, a full window is taken to be
+	 * followed by at least one more message.
+	 */
+	public MessagePage getMessages(String name, int start, int count) throws Exception {
+		String currentFolder = getFolders().getFolder(name);
+		int end = start + count;
+		if (limit > 0 && end > limit)
+			end = limit;
+		ListingHandler handler = new ListingHandler();
+		int total = 0;
+		if (start < end) {
+			total = listFolder(handler, currentFolder, "rows=" + start + "-" + (end - 1), createListingEntity());
+			if (total < 0) {
+				int size = handler.getMessages().size();
+				total = start + size;
+				if (start + size == end)
+					total++;
+			}
+		}
+		if (limit > 0 && total > limit)
+			total = limit;
+		return handler.createPage(total);
+	}
 
-			public void characters(char[] ch, int start, int length) throws SAXException {
-				content.append(ch, start, length);
+	/**
+	 * Lists the messages created at or after the given creation date, as
+	 * returned by {@link MessagePage#getLatest()}.
+	 */
+	public MessagePage getMessagesSince(String name, String since) throws Exception {
+		for (int i = 0; i < since.length(); i++) {
+			char c = since.charAt(i);
+			if (!Character.isDigit(c) && "-:.TZ+".indexOf(c) == -1) {
+				throw new IllegalArgumentException("Invalid creation date: " + since);
 			}
+		}
+		String currentFolder = getFolders().getFolder(name);
+		ListingHandler handler = new ListingHandler();
+		listFolder(handler, currentFolder, null, createListingEntity("\"DAV:creationdate\" >= CAST(\"" + since + "\" as 'dateTime')"));
+		return handler.createPage(handler.getMessages().size());
+	}
 
-			public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-				content.setLength(0);
+	/**
+	 * Lists the messages of the folder listing that also satisfy the given
+	 * condition, as compiled by {@link SearchCompiler}.
+	 */
+	public MessagePage search(String name, String condition) throws Exception {
+		String currentFolder = getFolders().getFolder(name);
+		ListingHandler handler = new ListingHandler();
+		listFolder(handler, currentFolder, null, createListingEntity(condition));
+		return handler.createPage(handler.getMessages().size());
+	}
+
+	/**
+	 * Collects the message URLs and UIDs of a folder listing, along with the latest
+	 * creation date in the listing and the URLs of the messages created at
+	 * that time.
+	 */
+	private static class ListingHandler implements MultistatusDecoder.Listener {
+
+		private final HrefIndex messages = new HrefIndex();
+
+		private final UidIndex uids = new UidIndex();
+
+		private final Set<String> latestUrls = new HashSet<String>();
+
+		private final String[][] properties;
+
+		private String latest;
+
+		private String lastSortValue;
+
+		private long lastUid = -1;
+
+		public ListingHandler() {
+			this(null);
+		}
+
+		/**
+		 * Creates a handler that also records the value of the given
+		 * property in the last message listed.
+		 */
+		public ListingHandler(String sortProperty) {
+			if (sortProperty == null) {
+				properties = new String[][] { { DAV_NAMESPACE, "creationdate" }, { PROPTAG_NAMESPACE, ARTICLE_NUMBER_PROPTAG } };
+			} else {
+				int index = sortProperty.lastIndexOf(':') + 1;
+				properties = new String[][] { { DAV_NAMESPACE, "creationdate" }, { PROPTAG_NAMESPACE, ARTICLE_NUMBER_PROPTAG }, { sortProperty.substring(0, index), sortProperty.substring(index) } };
 			}
+		}
 
-			public void endElement(String uri, String localName, String qName) throws SAXException {
-				if (!DAV_NAMESPACE.equals(uri))
-					return;
-				if (!"href".equals(localName))
-					return;
-				messages.add(content.toString());
+		/**
+		 * Returns the properties to decode from the listing.
+		 */
+		public String[][] getProperties() {
+			return properties;
+		}
+
+		public HrefIndex getMessages() {
+			return messages;
+		}
+
+		public String getLastSortValue() {
+			return lastSortValue;
+		}
+
+		public long getLastUid() {
+			return lastUid;
+		}
+
+		public MessagePage createPage(int total) {
+			return createPage(total, null);
+		}
+
+		public MessagePage createPage(int total, String cursor) {
+			return new MessagePage(messages, uids, total, latest, latestUrls, cursor);
+		}
+
+		public void response(MultistatusDecoder.Response response) throws SAXException {
+			String href = response.getHref();
+			long uid = response.getLong(PROPTAG_NAMESPACE, ARTICLE_NUMBER_PROPTAG, -1);
+			messages.add(href);
+			uids.add(uid);
+			String creationDate = response.getString(DAV_NAMESPACE, "creationdate");
+			if (creationDate != null && creationDate.length() > 0) {
+				int order = (latest == null) ? 1 : creationDate.compareTo(latest);
+				if (order > 0) {
+					latest = creationDate;
+					latestUrls.clear();
+				}
+				if (order >= 0)
+					latestUrls.add(href);
 			}
-		}, currentFolder);
-		return Collections.unmodifiableList(messages);
+			if (properties.length > 2)
+				lastSortValue = response.getString(properties[2][0], properties[2][1]);
+			lastUid = uid;
+		}
+
 	}
 
 	public void send(MimeMessage message) throws Exception {
@@ -474,149 +1005,70 @@ class ExchangeConnection {
 			bccRecipients = null;
 		}
 		message.setRecipients(Message.RecipientType.BCC, (Address[]) null);
-		synchronized (this) {
-			if (!isConnected()) {
-				throw new IllegalStateException("Not connected.");
-			}
-			if (!canSend()) {
-				throw new IllegalStateException("Unable to access outbox.");
-			}
-			HttpClient client = getClient();
-			String path = drafts;
-			if (!path.endsWith("/"))
-				path += "/";
-			String messageName = generateMessageName();
-			path += escape(messageName + ".eml");
-			PutMethod op = new PutMethod(path);
-			op.setRequestHeader("Content-Type", MESSAGE_CONTENT_TYPE);
-			op.setRequestEntity(createMessageEntity(message));
+		MailboxFolders folders = getFolders();
+		if (!folders.canSend()) {
+			throw new IllegalStateException("Unable to access outbox.");
+		}
+		String path = folders.getDrafts();
+		if (!path.endsWith("/"))
+			path += "/";
+		String messageName = generateMessageName();
+		path += escape(messageName + ".eml");
+		File messageFile = createMessageFile(message);
+		try {
+			HttpRequest request = new HttpRequest("PUT", path);
+			request.setBody(messageFile, MESSAGE_CONTENT_TYPE);
+			HttpResponse response = null;
 			InputStream stream = null;
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
-				if (status >= 300) {
+				response = execute(request);
+				stream = response.getBody();
+				if (response.getStatus() >= 300) {
 					throw new IllegalStateException("Unable to post message to draft folder.");
 				}
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
-			}
-			if (bccRecipients != null) {
-				ExchangeMethod patch = new ExchangeMethod(PROPPATCH_METHOD, path);
-				patch.setHeader("Content-Type", XML_CONTENT_TYPE);
-				patch.addHeader("Depth", "0");
-				patch.addHeader("Translate", "f");
-				patch.addHeader("Brief", "t");
-				patch.setRequestEntity(createAddBccEntity(bccRecipients));
-				stream = null;
-				try {
-					int status = client.executeMethod(patch);
-					stream = patch.getResponseBodyAsStream();
-					if (status >= 300) {
-						throw new IllegalStateException("Unable to add BCC recipients. Status: " + status);
-					}
-				} finally {
-					try {
-						if (stream != null) {
-							byte[] buf = new byte[65536];
-							try {
-								if (session.getDebug()) {
-									PrintStream log = session.getDebugOut();
-									log.println("Response Body:");
-									int count;
-									while ((count = stream.read(buf, 0, 65536)) != -1) {
-										log.write(buf, 0, count);
-									}
-									log.flush();
-									log.println();
-								} else {
-									while (stream.read(buf, 0, 65536) != -1)
-										;
-								}
-							} catch (Exception ignore) {
-							} finally {
-								try {
-									stream.close();
-								} catch (Exception ignore2) {
-								}
-							}
-						}
-					} finally {
-						patch.releaseConnection();
-					}
-				}
+				release(response, stream);
 			}
-			ExchangeMethod move = new ExchangeMethod(MOVE_METHOD, path);
-			String destination = submissionUri;
-			if (!destination.endsWith("/"))
-				destination += "/";
-			move.setHeader("Destination", destination);
-			stream = null;
+		} finally {
+			if (!messageFile.delete())
+				messageFile.deleteOnExit();
+		}
+		if (bccRecipients != null) {
+			HttpRequest patch = new HttpRequest(PROPPATCH_METHOD, path);
+			patch.addHeader("Depth", "0");
+			patch.addHeader("Translate", "f");
+			patch.addHeader("Brief", "t");
+			patch.setBody(createAddBccEntity(bccRecipients), XML_CONTENT_TYPE);
+			HttpResponse response = null;
+			InputStream stream = null;
 			try {
-				int status = client.executeMethod(move);
-				stream = move.getResponseBodyAsStream();
-				if (status >= 300) {
-					throw new IllegalStateException("Unable to move message to outbox: Status " + status);
+				response = execute(patch);
+				stream = response.getBody();
+				if (response.getStatus() >= 300) {
+					throw new IllegalStateException("Unable to add BCC recipients. Status: " + response.getStatus());
 				}
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					move.releaseConnection();
-				}
+				release(response, stream);
 			}
-			if (session.getDebug()) {
-				session.getDebugOut().println("Sent successfully.");
+		}
+		HttpRequest move = new HttpRequest(MOVE_METHOD, path);
+		String destination = folders.getSubmissionUri();
+		if (!destination.endsWith("/"))
+			destination += "/";
+		move.setHeader("Destination", destination);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(move);
+			stream = response.getBody();
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to move message to outbox: Status " + response.getStatus());
 			}
+		} finally {
+			release(response, stream);
+		}
+		if (session.getDebug()) {
+			session.getDebugOut().println("Sent successfully.");
 		}
 	}
 
@@ -629,269 +1081,359 @@ class ExchangeConnection {
 	}
 
 	public InputStream getInputStream(ExchangeMessage message) throws Exception {
-		synchronized (this) {
-			if (!isConnected()) {
-				throw new IllegalStateException("Not connected.");
+		getFolders();
+		HttpRequest request = new HttpRequest("GET", escape(message.getUrl()));
+		request.setHeader("Translate", "F");
+		acceptEncoding(request);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = getBody(response);
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to obtain inbox: " + response.getStatus());
 			}
-			HttpClient client = getClient();
-			GetMethod op = new GetMethod(escape(message.getUrl()));
-			op.setRequestHeader("Translate", "F");
-			InputStream stream = null;
+			final File tempFile = File.createTempFile("exmail", null, null);
+			tempFile.deleteOnExit();
+			OutputStream output = new FileOutputStream(tempFile);
+			byte[] buf = BufferPool.acquire();
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
-				if (status >= 300) {
-					throw new IllegalStateException("Unable to obtain inbox: " + status);
-				}
-				final File tempFile = File.createTempFile("exmail", null, null);
-				tempFile.deleteOnExit();
-				OutputStream output = new FileOutputStream(tempFile);
-				byte[] buf = new byte[65536];
 				int count;
-				while ((count = stream.read(buf, 0, 65536)) != -1) {
+				while ((count = stream.read(buf, 0, buf.length)) != -1) {
 					output.write(buf, 0, count);
 				}
 				output.flush();
-				output.close();
-				stream.close();
-				stream = null;
-				return new CachedMessageStream(tempFile, (ExchangeFolder) message.getFolder());
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+				BufferPool.release(buf);
+				output.close();
 			}
+			stream.close();
+			stream = null;
+			// a standalone message's stream is not closed with its folder
+			return new CachedMessageStream(tempFile, (message.getMessageNumber() > 0) ? (ExchangeFolder) message.getFolder() : null);
+		} finally {
+			release(response, stream);
 		}
 	}
 
 	private void doDelete(List<ExchangeMessage> messages) throws Exception {
-		synchronized (this) {
-			if (!isConnected()) {
-				throw new IllegalStateException("Not connected.");
-			}
-			HttpClient client = getClient();
-			String path = inbox;
-			if (!path.endsWith("/"))
-				path += "/";
-			ExchangeMethod op = new ExchangeMethod(BDELETE_METHOD, path);
-			op.setHeader("Content-Type", XML_CONTENT_TYPE);
-			op.addHeader("If-Match", "*");
-			op.addHeader("Brief", "t");
-			op.setRequestEntity(createDeleteEntity(messages));
-			InputStream stream = null;
-			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
-				if (status >= 300) {
-					throw new IllegalStateException("Unable to delete messages.");
-				}
-			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+		String path = getFolders().getInbox();
+		if (!path.endsWith("/"))
+			path += "/";
+		HttpRequest request = new HttpRequest(BDELETE_METHOD, path);
+		request.addHeader("If-Match", "*");
+		request.addHeader("Brief", "t");
+		request.setBody(createDeleteEntity(messages), XML_CONTENT_TYPE);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = response.getBody();
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to delete messages.");
 			}
+		} finally {
+			release(response, stream);
 		}
 	}
 
 	private void doMarkRead(List<ExchangeMessage> messages) throws Exception {
-		synchronized (this) {
-			if (!isConnected()) {
-				throw new IllegalStateException("Not connected.");
-			}
-			HttpClient client = getClient();
-			String path = inbox;
-			if (!path.endsWith("/"))
-				path += "/";
-			ExchangeMethod op = new ExchangeMethod(BPROPPATCH_METHOD, path);
-			op.setHeader("Content-Type", XML_CONTENT_TYPE);
-			op.addHeader("If-Match", "*");
-			op.addHeader("Brief", "t");
-			op.setRequestEntity(createMarkReadEntity(messages));
-			InputStream stream = null;
-			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
-				if (status >= 300) {
-					throw new IllegalStateException("Unable to mark messages read.");
-				}
-			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+		String path = getFolders().getInbox();
+		if (!path.endsWith("/"))
+			path += "/";
+		HttpRequest request = new HttpRequest(BPROPPATCH_METHOD, path);
+		request.addHeader("If-Match", "*");
+		request.addHeader("Brief", "t");
+		request.setBody(createMarkReadEntity(messages), XML_CONTENT_TYPE);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = response.getBody();
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to mark messages read.");
 			}
+		} finally {
+			release(response, stream);
 		}
 	}
 
-	private boolean isConnected() {
-		return (inbox != null);
+	private ExchangeSession getExchangeSession() {
+		ExchangeSession exchangeSession = this.exchangeSession;
+		if (exchangeSession == null) {
+			throw new IllegalStateException("Not connected.");
+		}
+		return exchangeSession;
 	}
 
-	private boolean canSend() {
-		return (drafts != null && submissionUri != null);
+	private MailboxFolders getFolders() {
+		MailboxFolders folders = getExchangeSession().getFolders();
+		if (folders == null || folders.getInbox() == null) {
+			throw new IllegalStateException("Not connected.");
+		}
+		return folders;
 	}
 
-	private void listFolder(DefaultHandler handler, String folder) throws Exception {
-		synchronized (this) {
-			if (!isConnected()) {
-				throw new IllegalStateException("Not connected.");
+	/**
+	 * Runs the folder's SEARCH, restricted to the given row range if one is
+	 * specified.  Returns the total number of rows the server reports for
+	 * the query, or -1 if it did not report one.
+	 */
+	private int listFolder(ListingHandler handler, String folder, String range, byte[] entity) throws Exception {
+		getFolders();
+		HttpRequest request = new HttpRequest(SEARCH_METHOD, folder);
+		if (range != null)
+			request.setHeader("Range", range);
+		request.setHeader("Brief", "t");
+		acceptEncoding(request);
+		request.setBody(entity, XML_CONTENT_TYPE);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = getBody(response);
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to obtain " + folder + ".");
 			}
-			HttpClient client = getClient();
-			ExchangeMethod op = new ExchangeMethod(SEARCH_METHOD, folder);
-			op.setHeader("Content-Type", XML_CONTENT_TYPE);
-			if (limit > 0)
-				op.setHeader("Range", "rows=0-" + limit);
-			op.setHeader("Brief", "t");
+			MultistatusDecoder.decode(stream, handler.getProperties(), handler);
+			stream.close();
+			stream = null;
+			return getRangeTotal(response.getHeader("Content-Range"));
+		} finally {
+			release(response, stream);
+		}
+	}
 
-			/* Mirco: Manage of custom query */
-			if ((filterLastCheck == null || "".equals(filterLastCheck)) && (filterFrom == null || "".equals(filterFrom)) && (filterNotFrom == null || "".equals(filterNotFrom)) && (filterTo == null || "".equals(filterTo))) {
-				op.setRequestEntity(unfiltered ? createAllInboxEntity() : createUnreadInboxEntity());
-			} else {
-				op.setRequestEntity(createCustomInboxEntity(unfiltered, filterLastCheck, filterFrom, filterNotFrom, filterTo));
+	/**
+	 * Returns the listing entity narrowed by an additional SQL condition,
+	 * which is added to the listing's WHERE clause before the SQL is
+	 * serialized.
+	 */
+	private byte[] createListingEntity(String condition) throws Exception {
+		String sql = getListingSql(getListingKey());
+		int index = sql.lastIndexOf("ORDER BY");
+		return createSearchEntity(sql.substring(0, index) + "AND " + condition + "\n" + sql.substring(index));
+	}
+
+	private byte[] createListingEntity() throws Exception {
+		String key = getListingKey();
+		byte[] entity = LISTING_ENTITIES.get(key);
+		if (entity == null) {
+			entity = createSearchEntity(getListingSql(key));
+			byte[] existing = LISTING_ENTITIES.putIfAbsent(key, entity);
+			if (existing != null)
+				entity = existing;
+		}
+		return entity;
+	}
+
+	private String getListingSql(String key) throws Exception {
+		String sql = LISTING_QUERIES.get(key);
+		if (sql == null) {
+			sql = compileListingSql(unfiltered, filterLastCheck, filterFrom, filterNotFrom, filterTo, sortKey, sortDescending);
+			String existing = LISTING_QUERIES.putIfAbsent(key, sql);
+			if (existing != null)
+				sql = existing;
+		}
+		return sql;
+	}
+
+	private String getListingKey() {
+		return unfiltered + "\u0000" + filterLastCheck + "\u0000" + filterFrom + "\u0000" + filterNotFrom + "\u0000" + filterTo + "\u0000" + sortKey[0] + "\u0000" + sortDescending;
+	}
+
+	/**
+	 * Lists the window of at most <code>count</code> messages that follow
+	 * the given cursor in listing order, or the first window if the cursor
+	 * is <code>null</code>.  The page returned carries the cursor for the
+	 * next window, or <code>null</code> if the listing is exhausted.  The
+	 * message limit does not apply to windows.
+	 */
+	public MessagePage getWindow(String name, String cursor, int count) throws Exception {
+		if (count <= 0)
+			throw new IllegalArgumentException("Invalid window size: " + count);
+		String currentFolder = getFolders().getFolder(name);
+		ListingHandler handler = new ListingHandler(sortKey[1]);
+		byte[] entity = createListingEntity();
+		if (cursor != null) {
+			String[] position = cursor.split("/");
+			if (position.length != 3 || !position[0].equals(sortKey[0]) || !isCursorValue(position[1]) || !isCursorValue(position[2])) {
+				throw new IllegalArgumentException("Invalid cursor: " + cursor);
 			}
-			InputStream stream = null;
-			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
-				if (status >= 300) {
-					throw new IllegalStateException("Unable to obtain " + folder + ".");
-				}
-				SAXParserFactory spf = SAXParserFactory.newInstance();
-				spf.setNamespaceAware(true);
-				SAXParser parser = spf.newSAXParser();
-				parser.parse(stream, handler);
-				stream.close();
-				stream = null;
-			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+			String value = "int".equals(sortKey[2]) ? position[1] : "CAST(\"" + position[1] + "\" as '" + sortKey[2] + "')";
+			String operator = sortDescending ? " < " : " > ";
+			String property = "\"" + sortKey[1] + "\"";
+			entity = createListingEntity("(" + property + operator + value + " OR (" + property + " = " + value + " AND \"" + PROPTAG_NAMESPACE + ARTICLE_NUMBER_PROPTAG + "\"" + operator + position[2] + "))");
+		}
+		listFolder(handler, currentFolder, "rows=0-" + (count - 1), entity);
+		int size = handler.getMessages().size();
+		String next = null;
+		if (size >= count) {
+			String value = handler.getLastSortValue();
+			long uid = handler.getLastUid();
+			if (value == null || uid < 0 || !isCursorValue(value)) {
+				throw new IllegalStateException("Unable to continue listing " + currentFolder + ".");
+			}
+			next = sortKey[0] + "/" + value + "/" + uid;
+		}
+		return handler.createPage(size, next);
+	}
+
+	private static boolean isCursorValue(String value) {
+		if (value.length() == 0)
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (!Character.isDigit(c) && "-:.TZ+".indexOf(c) == -1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the total from a Content-Range header of the form
+	 * "rows 0-99; total=1234".
+	 */
+	private static int getRangeTotal(String contentRange) {
+		if (contentRange == null)
+			return -1;
+		int index = contentRange.indexOf("total=");
+		if (index == -1)
+			return -1;
+		int end = index += 6;
+		while (end < contentRange.length() && Character.isDigit(contentRange.charAt(end)))
+			end++;
+		try {
+			return Integer.parseInt(contentRange.substring(index, end));
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns whether the named header is among those prefetched by
+	 * {@link #fetch(List)}.
+	 */
+	public static boolean isFetchedHeader(String name) {
+		for (String[] header : FETCHED_HEADERS) {
+			if (header[1].equalsIgnoreCase(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieves the envelope headers, read flag and size of messages in one
+	 * BPROPFIND per folder (and per thousand messages), storing them on the
+	 * messages so that they need not be downloaded to answer for them.
+	 */
+	public void fetch(List<ExchangeMessage> messages) throws Exception {
+		Map<String, List<ExchangeMessage>> folders = new HashMap<String, List<ExchangeMessage>>();
+		for (ExchangeMessage message : messages) {
+			String url = message.getUrl();
+			String folder = url.substring(0, url.lastIndexOf('/') + 1);
+			List<ExchangeMessage> folderMessages = folders.get(folder);
+			if (folderMessages == null) {
+				folderMessages = new ArrayList<ExchangeMessage>();
+				folders.put(folder, folderMessages);
+			}
+			folderMessages.add(message);
+		}
+		for (Map.Entry<String, List<ExchangeMessage>> entry : folders.entrySet()) {
+			List<ExchangeMessage> folderMessages = entry.getValue();
+			for (int start = 0; start < folderMessages.size(); start += FETCH_BATCH_SIZE) {
+				doFetch(entry.getKey(), folderMessages.subList(start, Math.min(start + FETCH_BATCH_SIZE, folderMessages.size())));
 			}
 		}
 	}
 
-	private void findInbox() throws Exception {
-		inbox = null;
-		drafts = null;
-		submissionUri = null;
-		sentitems = null;
-		outbox = null;
-		HttpClient client = getClient();
-		ExchangeMethod op = new ExchangeMethod(PROPFIND_METHOD, server + "/exchange/" + mailbox);
-		op.setHeader("Content-Type", XML_CONTENT_TYPE);
-		op.setHeader("Depth", "0");
-		op.setHeader("Brief", "t");
-		op.setRequestEntity(createFindInboxEntity());
+	private void doFetch(String folder, List<ExchangeMessage> messages) throws Exception {
+		final Map<String, ExchangeMessage> targets = new HashMap<String, ExchangeMessage>();
+		for (ExchangeMessage message : messages) {
+			String url = message.getUrl();
+			targets.put(url.substring(url.lastIndexOf('/') + 1), message);
+		}
+		HttpRequest request = new HttpRequest(BPROPFIND_METHOD, escape(folder));
+		request.setHeader("Brief", "t");
+		request.setBody(createFetchEntity(targets.keySet()), XML_CONTENT_TYPE);
+		acceptEncoding(request);
+		HttpResponse response = null;
 		InputStream stream = null;
 		try {
-			int status = client.executeMethod(op);
-			stream = op.getResponseBodyAsStream();
-			if (status >= 300) {
-				throw new IllegalStateException("Unable to obtain inbox.");
+			response = execute(request);
+			stream = getBody(response);
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to fetch messages: " + response.getStatus());
 			}
-			SAXParserFactory spf = SAXParserFactory.newInstance();
-			spf.setNamespaceAware(true);
-			SAXParser parser = spf.newSAXParser();
-			parser.parse(stream, new DefaultHandler() {
+			MultistatusDecoder.decode(stream, FETCHED_PROPERTIES, new MultistatusDecoder.Listener() {
+				public void response(MultistatusDecoder.Response response) throws SAXException {
+					String href = response.getHref();
+					ExchangeMessage message = targets.get(href.substring(href.lastIndexOf('/') + 1));
+					if (message == null)
+						return;
+					InternetHeaders envelope = new InternetHeaders();
+					for (String[] header : FETCHED_HEADERS) {
+						String value = response.getString(MAILHEADER_NAMESPACE, header[0]);
+						if (value != null && value.length() > 0)
+							envelope.addHeader(header[1], value);
+					}
+					try {
+						message.setFetched(envelope, response.getBoolean(HTTPMAIL_NAMESPACE, "read"), response.getInt(DAV_NAMESPACE, "getcontentlength", -1));
+					} catch (MessagingException ex) {
+						throw new SAXException(ex);
+					}
+				}
+			});
+			stream.close();
+			stream = null;
+		} finally {
+			release(response, stream);
+		}
+	}
+
+	/**
+	 * Subscribes to new-member notifications for the named folder, or
+	 * renews an existing subscription, returning the subscription ID, or
+	 * <code>null</code> if the server does not support subscriptions.
+	 */
+	public String subscribe(String name, int lifetime, String subscriptionId) throws Exception {
+		HttpRequest request = new HttpRequest(SUBSCRIBE_METHOD, getFolders().getFolder(name));
+		request.setHeader("Notification-type", "update/newmember");
+		request.setHeader("Subscription-lifetime", String.valueOf(lifetime));
+		if (subscriptionId != null)
+			request.setHeader("Subscription-id", subscriptionId);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = response.getBody();
+			if (response.getStatus() >= 300)
+				return null;
+			return response.getHeader("Subscription-id");
+		} finally {
+			release(response, stream);
+		}
+	}
+
+	/**
+	 * Polls a subscription, returning whether the folder has changed since
+	 * the last poll, or <code>null</code> if the subscription is no longer
+	 * valid.
+	 */
+	public Boolean poll(String name, String subscriptionId) throws Exception {
+		HttpRequest request = new HttpRequest(POLL_METHOD, getFolders().getFolder(name));
+		request.setHeader("Subscription-id", subscriptionId);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = getBody(response);
+			if (response.getStatus() == 204)
+				return Boolean.FALSE;
+			if (response.getStatus() >= 300)
+				return null;
+			final boolean[] fired = new boolean[1];
+			MultistatusDecoder.parse(stream, new DefaultHandler() {
 				private final StringBuilder content = new StringBuilder();
 
 				public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
@@ -903,170 +1445,424 @@ class ExchangeConnection {
 				}
 
 				public void endElement(String uri, String localName, String qName) throws SAXException {
-					if (!HTTPMAIL_NAMESPACE.equals(uri))
-						return;
-					if ("inbox".equals(localName)) {
-						ExchangeConnection.this.inbox = content.toString();
-					} else if ("drafts".equals(localName)) {
-						ExchangeConnection.this.drafts = content.toString();
-					} else if ("sentitems".equals(localName)) {
-						ExchangeConnection.this.sentitems = content.toString();
-					} else if ("outbox".equals(localName)) {
-						ExchangeConnection.this.outbox = content.toString();
-					} else if ("sendmsg".equals(localName)) {
-						ExchangeConnection.this.submissionUri = content.toString();
+					if (DAV_NAMESPACE.equals(uri) && "status".equals(localName) && content.indexOf(" 200 ") != -1)
+						fired[0] = true;
+				}
+			});
+			stream.close();
+			stream = null;
+			return Boolean.valueOf(fired[0]);
+		} finally {
+			release(response, stream);
+		}
+	}
+
+	public void unsubscribe(String name, String subscriptionId) throws Exception {
+		HttpRequest request = new HttpRequest(UNSUBSCRIBE_METHOD, getFolders().getFolder(name));
+		request.setHeader("Subscription-id", subscriptionId);
+		HttpResponse response = null;
+		try {
+			response = execute(request);
+		} finally {
+			if (response != null)
+				release(response, response.getBody());
+		}
+	}
+
+	/**
+	 * Returns a cheap fingerprint of the named folder's state (its item
+	 * count and last modification time) for servers without subscription
+	 * support; a change in the fingerprint indicates the folder changed.
+	 */
+	public String probe(String name) throws Exception {
+		Map<String, String> properties = getFolderProperties(name);
+		return "visiblecount=" + properties.get(DAV_NAMESPACE + "visiblecount") + ";getlastmodified=" + properties.get(DAV_NAMESPACE + "getlastmodified") + ";";
+	}
+
+	/**
+	 * Returns the number of messages a listing of the named folder would
+	 * hold and the number of unread messages among them, from the folder's
+	 * count properties; no messages are listed.  Either is -1 where the
+	 * listing is narrowed (by a sender, recipient or date filter, or by the
+	 * message limit) in a way the folder's counts do not reflect.
+	 */
+	public int[] getMessageCounts(String name) throws Exception {
+		Map<String, String> properties = getFolderProperties(name);
+		int visible = parseCount(properties.get(DAV_NAMESPACE + "visiblecount"));
+		int unread = parseCount(properties.get(HTTPMAIL_NAMESPACE + "unreadcount"));
+		if ((filterLastCheck != null && !"".equals(filterLastCheck)) || (filterFrom != null && !"".equals(filterFrom)) || (filterNotFrom != null && !"".equals(filterNotFrom)) || (filterTo != null && !"".equals(filterTo))) {
+			return new int[] { -1, -1 };
+		}
+		int count = unfiltered ? visible : unread;
+		if (limit > 0 && count > limit)
+			return new int[] { limit, -1 };
+		return new int[] { count, unfiltered ? unread : count };
+	}
+
+	private static int parseCount(String count) {
+		if (count == null)
+			return -1;
+		try {
+			return Integer.parseInt(count.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the count, modification and creation properties of the named
+	 * folder with a PROPFIND of depth 0, keyed by namespace and name.
+	 */
+	private Map<String, String> getFolderProperties(String name) throws Exception {
+		HttpRequest request = new HttpRequest(PROPFIND_METHOD, getFolders().getFolder(name));
+		request.setHeader("Depth", "0");
+		request.setHeader("Brief", "t");
+		request.setBody(createProbeEntity(), XML_CONTENT_TYPE);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = execute(request);
+			stream = getBody(response);
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to probe " + name + ": " + response.getStatus());
+			}
+			final Map<String, String> properties = new HashMap<String, String>();
+			MultistatusDecoder.decode(stream, FOLDER_PROPERTIES, new MultistatusDecoder.Listener() {
+				public void response(MultistatusDecoder.Response response) throws SAXException {
+					for (String[] property : FOLDER_PROPERTIES) {
+						String value = response.getString(property[0], property[1]);
+						if (value != null)
+							properties.put(property[0] + property[1], value);
+					}
+				}
+			});
+			stream.close();
+			stream = null;
+			return properties;
+		} finally {
+			release(response, stream);
+		}
+	}
+
+	private MailboxFolders findInbox() throws Exception {
+		final Map<String, String> uris = new HashMap<String, String>();
+		HttpRequest request = new HttpRequest(PROPFIND_METHOD, server + "/exchange/" + mailbox);
+		request.setHeader("Depth", "0");
+		request.setHeader("Brief", "t");
+		request.setBody(createFindInboxEntity(), XML_CONTENT_TYPE);
+		acceptEncoding(request);
+		HttpResponse response = null;
+		InputStream stream = null;
+		try {
+			response = getEngine().execute(request);
+			stream = getBody(response);
+			if (response.getStatus() >= 300) {
+				throw new IllegalStateException("Unable to obtain inbox.");
+			}
+			MultistatusDecoder.decode(stream, MAILBOX_PROPERTIES, new MultistatusDecoder.Listener() {
+				public void response(MultistatusDecoder.Response response) throws SAXException {
+					for (String[] property : MAILBOX_PROPERTIES) {
+						String value = response.getString(property[0], property[1]);
+						if (value != null)
+							uris.put(property[1], value);
 					}
 				}
 			});
 			stream.close();
 			stream = null;
+			return new MailboxFolders(uris.get("inbox"), uris.get("drafts"), uris.get("sentitems"), uris.get("outbox"), uris.get("sendmsg"));
 		} finally {
+			release(response, stream);
+		}
+	}
+
+	private HttpEngine getEngine() {
+		return getExchangeSession().getEngine();
+	}
+
+	private void acceptEncoding(HttpRequest request) {
+		if (compression)
+			request.setHeader("Accept-Encoding", "gzip, deflate");
+	}
+
+	/**
+	 * Returns the response body, decompressing it as it is read if the
+	 * server applied a gzip or deflate content encoding.
+	 */
+	private static InputStream getBody(HttpResponse response) throws IOException {
+		InputStream stream = response.getBody();
+		String encoding = response.getHeader("Content-Encoding");
+		if (stream == null || encoding == null)
+			return stream;
+		encoding = encoding.trim();
+		if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
 			try {
-				if (stream != null) {
-					byte[] buf = new byte[65536];
+				return new GZIPInputStream(stream, 8192);
+			} catch (EOFException ex) {
+				// empty body
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		}
+		if ("deflate".equalsIgnoreCase(encoding)) {
+			// "deflate" should be zlib-wrapped, but some servers send raw deflate data
+			PushbackInputStream pushback = new PushbackInputStream(stream, 2);
+			byte[] header = new byte[2];
+			int count = 0;
+			int read;
+			while (count < 2 && (read = pushback.read(header, count, 2 - count)) != -1) {
+				count += read;
+			}
+			if (count > 0)
+				pushback.unread(header, 0, count);
+			boolean zlib = (count == 2 && (header[0] & 0x0f) == 8 && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0);
+			return new InflaterInputStream(pushback, new Inflater(!zlib), 8192) {
+				public void close() throws IOException {
 					try {
-						if (session.getDebug()) {
-							PrintStream log = session.getDebugOut();
-							log.println("Response Body:");
-							int count;
-							while ((count = stream.read(buf, 0, 65536)) != -1) {
-								log.write(buf, 0, count);
-							}
-							log.flush();
-							log.println();
-						} else {
-							while (stream.read(buf, 0, 65536) != -1)
-								;
-						}
-					} catch (Exception ignore) {
+						super.close();
 					} finally {
-						try {
-							stream.close();
-						} catch (Exception ignore2) {
-						}
+						inf.end();
 					}
 				}
-			} finally {
-				op.releaseConnection();
+			};
+		}
+		return stream;
+	}
+
+	/**
+	 * Releases a response's connection.  A body the caller has not read to
+	 * the end is drained (and echoed to the debug output in debug mode) if
+	 * no more than the drain threshold remains, so that the connection can
+	 * be reused; a longer or open-ended body is aborted instead, closing
+	 * the connection rather than downloading data that will be discarded.
+	 */
+	private void release(HttpResponse response, InputStream stream) {
+		if (response == null)
+			return;
+		boolean drained = true;
+		try {
+			if (stream != null)
+				drained = drain(response, stream);
+		} finally {
+			if (drained) {
+				try {
+					if (stream != null)
+						stream.close();
+				} catch (Exception ignore) {
+				}
+				response.release();
+			} else {
+				// closing the stream would read it to the end
+				response.abort();
 			}
 		}
 	}
 
-	private HttpClient getClient() {
-		synchronized (this) {
-			if (client == null) {
-				client = new HttpClient();
-				if (timeout > 0)
-					client.getParams().setSoTimeout(timeout);
-				if (connectionTimeout > 0) {
-					client.getHttpConnectionManager().getParams().setConnectionTimeout(connectionTimeout);
+	private boolean drain(HttpResponse response, InputStream stream) {
+		PrintStream log = session.getDebug() ? session.getDebugOut() : null;
+		String length = response.getHeader("Content-Length");
+		if (length != null) {
+			try {
+				if (Long.parseLong(length.trim()) > drainThreshold) {
+					if (log != null)
+						log.println("Discarding response body of " + length.trim() + " bytes.");
+					return false;
 				}
-				if (localAddress != null) {
-					client.getHostConfiguration().setLocalAddress(localAddress);
+			} catch (NumberFormatException ignore) {
+			}
+		}
+		byte[] buf = BufferPool.acquire();
+		try {
+			if (log != null)
+				log.println("Response Body:");
+			long remaining = drainThreshold;
+			int count;
+			while ((count = stream.read(buf, 0, (int) Math.min(buf.length, remaining + 1))) != -1) {
+				if (log != null)
+					log.write(buf, 0, count);
+				remaining -= count;
+				if (remaining < 0) {
+					if (log != null) {
+						log.println();
+						log.println("Response body exceeds " + drainThreshold + " bytes; discarding the rest.");
+					}
+					return false;
 				}
 			}
-			return client;
+			if (log != null) {
+				log.flush();
+				log.println();
+			}
+			return true;
+		} catch (Exception ex) {
+			return false;
+		} finally {
+			BufferPool.release(buf);
 		}
 	}
 
-	private void signOn() throws Exception {
-		HttpClient client = getClient();
-		URL serverUrl = new URL(server);
-		String host = serverUrl.getHost();
-		int port = serverUrl.getPort();
-		if (port == -1)
-			port = serverUrl.getDefaultPort();
-		AuthScope authScope = new AuthScope(host, port);
+	/**
+	 * Executes a request on the current session.  If the server reports
+	 * that the session is no longer authenticated (for instance because the
+	 * forms-based session timed out), the session is renewed with a single
+	 * sign-on shared by all concurrent callers, and idempotent requests are
+	 * transparently replayed.  Other requests fail with an
+	 * <code>IllegalStateException</code>, since the server may already have
+	 * acted on them, but subsequent requests use the renewed session.
+	 * <p>
+	 * A session restored from the session cache has not yet been accepted
+	 * by the server, so any request it was rejected for is replayed.
+	 */
+	private HttpResponse execute(HttpRequest request) throws Exception {
+		ExchangeSession exchangeSession = getExchangeSession();
+		boolean restored = exchangeSession.isRestored();
+		int generation = exchangeSession.getGeneration();
+		HttpResponse response = exchangeSession.getEngine().execute(request);
+		if (!isAuthenticationFailure(response)) {
+			if (restored)
+				exchangeSession.setRestored(false);
+			return response;
+		}
+		release(response, response.getBody());
+		renewSession(exchangeSession, generation);
+		if (!isIdempotent(request) && !restored) {
+			throw new IllegalStateException("Session for " + mailbox + " was rejected; " + request.getMethod() + " request was not replayed.");
+		}
+		return exchangeSession.getEngine().execute(request);
+	}
 
-		if (username.indexOf("\\") < 0) {
-			client.getState().setCredentials(authScope, new UsernamePasswordCredentials(username, password));
-		} else {
-			// Try to connect with NTLM authentication
-			String domainUser = username.substring(username.indexOf("\\") + 1, username.length());
-			String domain = username.substring(0, username.indexOf("\\"));
-			client.getState().setCredentials(authScope, new NTCredentials(domainUser, password, host, domain));
+	private boolean restoreSession(ExchangeSession exchangeSession) throws Exception {
+		if (sessionCache == null)
+			return false;
+		SessionCache.Entry entry = sessionCache.load(server, username, mailbox, password);
+		if (entry == null)
+			return false;
+		HttpEngine engine = exchangeSession.getEngine();
+		engine.setCredentials(username, password);
+		engine.addCookies(entry.getCookies());
+		exchangeSession.setFolders(entry.getFolders());
+		exchangeSession.setRestored(true);
+		if (session.getDebug()) {
+			session.getDebugOut().println("Restored cached session for " + mailbox + ".");
 		}
+		return true;
+	}
 
-		boolean authenticated = false;
-		OptionsMethod authTest = new OptionsMethod(server + "/exchange");
+	private void saveSession(ExchangeSession exchangeSession) {
+		if (sessionCache == null)
+			return;
 		try {
-			authenticated = (client.executeMethod(authTest) < 400);
-		} finally {
-			try {
-				InputStream stream = authTest.getResponseBodyAsStream();
-				byte[] buf = new byte[65536];
-				try {
-					if (session.getDebug()) {
-						PrintStream log = session.getDebugOut();
-						log.println("Response Body:");
-						int count;
-						while ((count = stream.read(buf, 0, 65536)) != -1) {
-							log.write(buf, 0, count);
-						}
-						log.flush();
-						log.println();
-					} else {
-						while (stream.read(buf, 0, 65536) != -1)
-							;
-					}
-				} catch (Exception ignore) {
-				} finally {
-					try {
-						stream.close();
-					} catch (Exception ignore2) {
-					}
-				}
-			} finally {
-				authTest.releaseConnection();
+			sessionCache.store(server, username, mailbox, password, exchangeSession.getFolders(), exchangeSession.getEngine().getCookies());
+		} catch (Exception ex) {
+			if (session.getDebug()) {
+				session.getDebugOut().println("Unable to cache session: " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Signs on again, unless another thread has already renewed the session
+	 * since the caller observed the given generation.
+	 */
+	private void renewSession(ExchangeSession exchangeSession, int generation) throws Exception {
+		synchronized (exchangeSession.getSignOnLock()) {
+			if (exchangeSession.getGeneration() != generation)
+				return;
+			if (session.getDebug()) {
+				session.getDebugOut().println("Session for " + mailbox + " was rejected; signing on again.");
 			}
+			exchangeSession.getEngine().clearCookies();
+			exchangeSession.setFolders(signOn());
+			exchangeSession.setRestored(false);
+			exchangeSession.nextGeneration();
+			saveSession(exchangeSession);
 		}
-		if (!authenticated) {
-			PostMethod op = new PostMethod(server + SIGN_ON_URI);
-			op.setRequestHeader("Content-Type", FORM_URLENCODED_CONTENT_TYPE);
-			op.addParameter("destination", server + "/exchange");
-			op.addParameter("flags", "0");
-			op.addParameter("username", username);
-			op.addParameter("password", password);
+	}
+
+	private static boolean isIdempotent(HttpRequest request) {
+		String name = request.getMethod();
+		return "GET".equals(name) || "HEAD".equals(name) || "OPTIONS".equals(name) || PROPFIND_METHOD.equals(name) || BPROPFIND_METHOD.equals(name) || SEARCH_METHOD.equals(name);
+	}
+
+	/**
+	 * Returns whether a response indicates that the server did not accept
+	 * the session's credentials or cookies: a 401, Outlook Web Access's 440
+	 * (login timeout), or a redirect to the forms-based logon page.
+	 */
+	private static boolean isAuthenticationFailure(HttpResponse response) {
+		int status = response.getStatus();
+		if (status == 401 || status == LOGIN_TIMEOUT_STATUS)
+			return true;
+		if (status < 300 || status >= 400)
+			return false;
+		String location = response.getHeader("Location");
+		return location != null && location.indexOf(AUTH_URI_PREFIX) != -1;
+	}
+
+	/**
+	 * Signs on to the server.  If the authentication strategy that worked
+	 * last time is known, it is used directly; otherwise (or if it no longer
+	 * works) an OPTIONS request probes whether HTTP authentication is
+	 * accepted, falling back to the forms-based logon.
+	 */
+	private MailboxFolders signOn() throws Exception {
+		HttpEngine engine = getEngine();
+		engine.setCredentials(username, password);
+
+		AuthenticationStrategy strategy = AuthenticationStrategy.lookup(server, sessionCache);
+		if (strategy != null) {
+			if (session.getDebug()) {
+				session.getDebugOut().println("Signing on using " + strategy + " authentication.");
+			}
 			try {
-				int status = client.executeMethod(op);
-				if (status >= 400) {
-					throw new IllegalStateException("Sign-on failed: " + status);
-				}
-			} finally {
-				try {
-					InputStream stream = op.getResponseBodyAsStream();
-					byte[] buf = new byte[65536];
-					try {
-						if (session.getDebug()) {
-							PrintStream log = session.getDebugOut();
-							log.println("Response Body:");
-							int count;
-							while ((count = stream.read(buf, 0, 65536)) != -1) {
-								log.write(buf, 0, count);
-							}
-							log.flush();
-							log.println();
-						} else {
-							while (stream.read(buf, 0, 65536) != -1)
-								;
-						}
-					} catch (Exception ignore) {
-					} finally {
-						try {
-							stream.close();
-						} catch (Exception ignore2) {
-						}
-					}
-				} finally {
-					op.releaseConnection();
+				if (strategy == AuthenticationStrategy.FORMS)
+					formsSignOn(engine);
+				return findInbox();
+			} catch (Exception ex) {
+				AuthenticationStrategy.forget(server, sessionCache);
+				if (session.getDebug()) {
+					session.getDebugOut().println("Sign-on using " + strategy + " authentication failed; probing.");
 				}
 			}
 		}
-		findInbox();
+		strategy = AuthenticationStrategy.HTTP;
+		if (!probeAuthentication(engine)) {
+			strategy = AuthenticationStrategy.FORMS;
+			formsSignOn(engine);
+		}
+		MailboxFolders folders = findInbox();
+		AuthenticationStrategy.remember(server, strategy, sessionCache);
+		return folders;
 	}
 
-	private RequestEntity createMessageEntity(MimeMessage message) throws Exception {
-		final File tempFile = File.createTempFile("exmail", null, null);
+	private boolean probeAuthentication(HttpEngine engine) throws Exception {
+		HttpResponse response = engine.execute(new HttpRequest("OPTIONS", server + "/exchange"));
+		try {
+			return (response.getStatus() < 400);
+		} finally {
+			release(response, response.getBody());
+		}
+	}
+
+	private void formsSignOn(HttpEngine engine) throws Exception {
+		StringBuilder form = new StringBuilder();
+		form.append("destination=").append(URLEncoder.encode(server + "/exchange", "UTF-8"));
+		form.append("&flags=0");
+		form.append("&username=").append(URLEncoder.encode(username, "UTF-8"));
+		form.append("&password=").append(URLEncoder.encode(password, "UTF-8"));
+		HttpRequest request = new HttpRequest("POST", server + SIGN_ON_URI);
+		request.setBody(form.toString().getBytes("UTF-8"), FORM_URLENCODED_CONTENT_TYPE);
+		HttpResponse response = engine.execute(request);
+		try {
+			if (response.getStatus() >= 400) {
+				throw new IllegalStateException("Sign-on failed: " + response.getStatus());
+			}
+		} finally {
+			release(response, response.getBody());
+		}
+	}
+
+	private File createMessageFile(MimeMessage message) throws Exception {
+		File tempFile = File.createTempFile("exmail", null, null);
 		tempFile.deleteOnExit();
 		OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile));
 		message.writeTo(output);
@@ -1079,228 +1875,186 @@ class ExchangeConnection {
 		}
 		output.flush();
 		output.close();
-		InputStream stream = new FileInputStream(tempFile) {
-			public void close() throws IOException {
-				try {
-					super.close();
-				} finally {
-					try {
-						if (!tempFile.delete())
-							tempFile.deleteOnExit();
-					} catch (Exception ignore) {
-					}
-				}
-			}
-		};
-		return new InputStreamRequestEntity(stream, tempFile.length(), MESSAGE_CONTENT_TYPE);
-	}
-
-	private static RequestEntity createFindInboxEntity() throws Exception {
-		synchronized (ExchangeConnection.class) {
-			if (findInboxEntity == null) {
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				dbf.setNamespaceAware(true);
-				Document doc = dbf.newDocumentBuilder().newDocument();
-				Element propfind = doc.createElementNS(DAV_NAMESPACE, "propfind");
-				doc.appendChild(propfind);
-				Element prop = doc.createElementNS(DAV_NAMESPACE, "prop");
-				propfind.appendChild(prop);
-				Element inbox = doc.createElementNS(HTTPMAIL_NAMESPACE, "inbox");
-				prop.appendChild(inbox);
-				Element drafts = doc.createElementNS(HTTPMAIL_NAMESPACE, "drafts");
-				prop.appendChild(drafts);
-				Element sendmsg = doc.createElementNS(HTTPMAIL_NAMESPACE, "sendmsg");
-				prop.appendChild(sendmsg);
-				Element outbox = doc.createElementNS(HTTPMAIL_NAMESPACE, "outbox");
-				prop.appendChild(outbox);
-				Element sentitems = doc.createElementNS(HTTPMAIL_NAMESPACE, "sentitems");
-				prop.appendChild(sentitems);
-
-				// http://msdn.microsoft.com/en-us/library/ms992623(EXCHG.65).aspx
+		return tempFile;
+	}
 
-				ByteArrayOutputStream collector = new ByteArrayOutputStream();
-				Transformer transformer = TransformerFactory.newInstance().newTransformer();
-				transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-				transformer.transform(new DOMSource(doc), new StreamResult(collector));
-				findInboxEntity = collector.toByteArray();
-			}
-			return new ByteArrayRequestEntity(findInboxEntity, XML_CONTENT_TYPE);
+	private static byte[] createFindInboxEntity() throws Exception {
+		byte[] entity = CONSTANT_ENTITIES.get(FIND_INBOX_ENTITY);
+		if (entity == null) {
+			XmlWriter writer = new XmlWriter(DAV_NAMESPACE, HTTPMAIL_NAMESPACE);
+			writer.start(DAV_NAMESPACE, "propfind").start(DAV_NAMESPACE, "prop");
+			writer.element(HTTPMAIL_NAMESPACE, "inbox");
+			writer.element(HTTPMAIL_NAMESPACE, "drafts");
+			writer.element(HTTPMAIL_NAMESPACE, "sendmsg");
+			writer.element(HTTPMAIL_NAMESPACE, "outbox");
+			writer.element(HTTPMAIL_NAMESPACE, "sentitems");
+
+			// http://msdn.microsoft.com/en-us/library/ms992623(EXCHG.65).aspx
+
+			entity = putConstantEntity(FIND_INBOX_ENTITY, writer.end().end().toByteArray());
 		}
+		return entity;
 	}
 
-	private static RequestEntity createUnreadInboxEntity() throws Exception {
-		synchronized (ExchangeConnection.class) {
-			if (unreadInboxEntity == null) {
-				unreadInboxEntity = createSearchEntity(new String(getResource(GET_UNREAD_MESSAGES_SQL_RESOURCE), "UTF-8"));
-			}
-			return new ByteArrayRequestEntity(unreadInboxEntity, XML_CONTENT_TYPE);
+	private static byte[] createFetchEntity(Collection<String> files) throws Exception {
+		XmlWriter writer = new XmlWriter(DAV_NAMESPACE, HTTPMAIL_NAMESPACE, MAILHEADER_NAMESPACE);
+		writer.start(DAV_NAMESPACE, "propfind").start(DAV_NAMESPACE, "target");
+		for (String file : files) {
+			writer.element(DAV_NAMESPACE, "href", file);
 		}
+		writer.end().start(DAV_NAMESPACE, "prop");
+		for (String[] header : FETCHED_HEADERS) {
+			writer.element(MAILHEADER_NAMESPACE, header[0]);
+		}
+		writer.element(HTTPMAIL_NAMESPACE, "read");
+		writer.element(DAV_NAMESPACE, "getcontentlength");
+		return writer.end().end().toByteArray();
 	}
 
-	private static RequestEntity createAllInboxEntity() throws Exception {
-		synchronized (ExchangeConnection.class) {
-			if (allInboxEntity == null) {
-				allInboxEntity = createSearchEntity(new String(getResource(GET_ALL_MESSAGES_SQL_RESOURCE), "UTF-8"));
-			}
-			return new ByteArrayRequestEntity(allInboxEntity, XML_CONTENT_TYPE);
+	private static byte[] createProbeEntity() throws Exception {
+		byte[] entity = CONSTANT_ENTITIES.get(PROBE_ENTITY);
+		if (entity == null) {
+			XmlWriter writer = new XmlWriter(DAV_NAMESPACE, HTTPMAIL_NAMESPACE);
+			writer.start(DAV_NAMESPACE, "propfind").start(DAV_NAMESPACE, "prop");
+			writer.element(DAV_NAMESPACE, "visiblecount");
+			writer.element(DAV_NAMESPACE, "getlastmodified");
+			writer.element(HTTPMAIL_NAMESPACE, "unreadcount");
+			writer.element(DAV_NAMESPACE, "creationdate");
+			entity = putConstantEntity(PROBE_ENTITY, writer.end().end().toByteArray());
 		}
+		return entity;
 	}
 
-	private static RequestEntity createCustomInboxEntity(boolean unfiltered, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo) throws Exception {
-		synchronized (ExchangeConnection.class) {
-			/*
-			 * If user has to use filter base on a adte we have to build a new
-			 * filter
-			 */
-			// if (customInboxEntity == null) {
-			customInboxEntity = createSearchEntity(new String(getResource(GET_FILTERED_MESSAGES_SQL_RESOURCE), "UTF-8"));
-			// }
+	/**
+	 * Shares a newly built constant entity, returning the one built first if
+	 * another thread got there before.
+	 */
+	private static byte[] putConstantEntity(String name, byte[] entity) {
+		byte[] existing = CONSTANT_ENTITIES.putIfAbsent(name, entity);
+		return (existing != null) ? existing : entity;
+	}
 
+	/**
+	 * Builds the SQL of a folder listing from the query resources, the
+	 * filters and the sort order.  Filter values are substituted into the
+	 * SQL, which is escaped for the XML body only when it is serialized
+	 * into a SEARCH entity.
+	 */
+	private static String compileListingSql(boolean unfiltered, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo, String[] sortKey, boolean sortDescending) throws Exception {
+		String sql;
+		/* Mirco: Manage of custom query */
+		if ((filterLastCheck == null || "".equals(filterLastCheck)) && (filterFrom == null || "".equals(filterFrom)) && (filterNotFrom == null || "".equals(filterNotFrom)) && (filterTo == null || "".equals(filterTo))) {
+			sql = new String(getResource(unfiltered ? GET_ALL_MESSAGES_SQL_RESOURCE : GET_UNREAD_MESSAGES_SQL_RESOURCE), "UTF-8");
+		} else {
+			sql = new String(getResource(GET_FILTERED_MESSAGES_SQL_RESOURCE), "UTF-8");
 			/* Mirco: Replace Filtes */
-			String filter = new String(customInboxEntity);
 			if (!unfiltered) {
-				filter = filter.replace(BOOKMARK_FILTER_UNREADED, "AND \"urn:schemas:httpmail:read\" = False");
+				sql = sql.replace(BOOKMARK_FILTER_UNREADED, "AND \"urn:schemas:httpmail:read\" = False");
 			} else {
-				filter = filter.replace(BOOKMARK_FILTER_UNREADED, "");
+				sql = sql.replace(BOOKMARK_FILTER_UNREADED, "");
 			}
 			if (filterLastCheck != null && !"".equals(filterLastCheck)) {
 				// Es. AND "urn:schemas:httpmail:datereceived" >
 				// CAST("2010-08-04T00:00:00Z" as 'dateTime')
-				filter = filter.replace(BOOKMARK_FILTER_LAST_CHECK, "AND \"urn:schemas:httpmail:datereceived\" > CAST(\"" + filterLastCheck + "\" as 'dateTime')");
+				sql = sql.replace(BOOKMARK_FILTER_LAST_CHECK, "AND \"urn:schemas:httpmail:datereceived\" > CAST(\"" + filterLastCheck + "\" as 'dateTime')");
 			} else {
-				filter = filter.replace(BOOKMARK_FILTER_LAST_CHECK, "");
+				sql = sql.replace(BOOKMARK_FILTER_LAST_CHECK, "");
 			}
 			if (filterFrom != null && !"".equals(filterFrom)) {
 				// Es. AND "urn:schemas:httpmail:fromemail" LIKE '@domain.com%'
-				filter = filter.replace(BOOKMARK_FILTER_FROM, "AND \"urn:schemas:httpmail:fromemail\" LIKE '%" + filterFrom + "%'");
+				sql = sql.replace(BOOKMARK_FILTER_FROM, "AND \"urn:schemas:httpmail:fromemail\" LIKE '%" + filterFrom + "%'");
 			} else {
-				filter = filter.replace(BOOKMARK_FILTER_FROM, "");
+				sql = sql.replace(BOOKMARK_FILTER_FROM, "");
 			}
 			if (filterNotFrom != null && !"".equals(filterNotFrom)) {
 				if (filterNotFrom.indexOf(";") > 0) {
 					StringBuilder sb = new StringBuilder();
-					// sb.append("AND (");
 					for (String aFilter : filterNotFrom.split(";")) {
 						sb.append("AND \"urn:schemas:httpmail:fromemail\" NOT LIKE '%" + aFilter + "%'");
 					}
-					// sb.append(")");
-
-					filter = filter.replace(BOOKMARK_FILTER_NOT_FROM, sb.toString());
+					sql = sql.replace(BOOKMARK_FILTER_NOT_FROM, sb.toString());
 				} else {
 					// Es. AND "urn:schemas:httpmail:fromemail" LIKE
 					// '@domain.com%'
-					filter = filter.replace(BOOKMARK_FILTER_NOT_FROM, "AND \"urn:schemas:httpmail:fromemail\" NOT LIKE '%" + filterNotFrom + "%'");
+					sql = sql.replace(BOOKMARK_FILTER_NOT_FROM, "AND \"urn:schemas:httpmail:fromemail\" NOT LIKE '%" + filterNotFrom + "%'");
 				}
 			} else {
-				filter = filter.replace(BOOKMARK_FILTER_NOT_FROM, "");
+				sql = sql.replace(BOOKMARK_FILTER_NOT_FROM, "");
 			}
 			if (filterTo != null && !"".equals(filterTo)) {
 				// Es. AND "urn:schemas:httpmail:to" LIKE '%test@domain.com%'
-				filter = filter.replace(BOOKMARK_FILTER_TO, "AND \"urn:schemas:httpmail:to\" LIKE '%" + filterTo + "%'");
+				sql = sql.replace(BOOKMARK_FILTER_TO, "AND \"urn:schemas:httpmail:to\" LIKE '%" + filterTo + "%'");
 			} else {
-				filter = filter.replace(BOOKMARK_FILTER_TO, "");
+				sql = sql.replace(BOOKMARK_FILTER_TO, "");
 			}
+		}
+		return sort(sql, sortKey, sortDescending);
+	}
 
-			customInboxEntity = filter.getBytes();
-			return new ByteArrayRequestEntity(customInboxEntity, XML_CONTENT_TYPE);
+	/**
+	 * Orders listing SQL by the given sort key, breaking ties by article
+	 * number so that the order is total and stable across requests.
+	 */
+	private static String sort(String sql, String[] sortKey, boolean sortDescending) {
+		String order = "ORDER BY \"DAV:creationdate\"";
+		int index = sql.lastIndexOf(order);
+		if (index == -1)
+			return sql;
+		String direction = sortDescending ? " DESC" : " ASC";
+		sql = sql.substring(0, index) + "ORDER BY \"" + sortKey[1] + "\"" + direction + ", \"" + PROPTAG_NAMESPACE + ARTICLE_NUMBER_PROPTAG + "\"" + direction + sql.substring(index + order.length());
+		int select = sql.indexOf("SELECT") + "SELECT".length();
+		if (sql.indexOf("\"" + sortKey[1] + "\"") > sql.indexOf("FROM", select)) {
+			sql = sql.substring(0, select) + "\n    \"" + sortKey[1] + "\"," + sql.substring(select);
 		}
+		return sql;
 	}
 
 	private static byte[] createSearchEntity(String sqlString) throws Exception {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		Document doc = dbf.newDocumentBuilder().newDocument();
-		Element searchRequest = doc.createElementNS(DAV_NAMESPACE, "searchrequest");
-		doc.appendChild(searchRequest);
-		Element sql = doc.createElementNS(DAV_NAMESPACE, "sql");
-		searchRequest.appendChild(sql);
-		sql.appendChild(doc.createTextNode(sqlString));
-		ByteArrayOutputStream collector = new ByteArrayOutputStream();
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
-		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return collector.toByteArray();
-	}
-
-	private static RequestEntity createDeleteEntity(List<ExchangeMessage> messages) throws Exception {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		Document doc = dbf.newDocumentBuilder().newDocument();
-		Element delete = doc.createElementNS(DAV_NAMESPACE, "delete");
-		doc.appendChild(delete);
-		Element target = doc.createElementNS(DAV_NAMESPACE, "target");
-		delete.appendChild(target);
+		XmlWriter writer = new XmlWriter(DAV_NAMESPACE);
+		writer.start(DAV_NAMESPACE, "searchrequest");
+		writer.element(DAV_NAMESPACE, "sql", sqlString);
+		return writer.end().toByteArray();
+	}
+
+	private static byte[] createDeleteEntity(List<ExchangeMessage> messages) throws Exception {
+		XmlWriter writer = new XmlWriter(DAV_NAMESPACE);
+		writer.start(DAV_NAMESPACE, "delete").start(DAV_NAMESPACE, "target");
 		for (ExchangeMessage message : messages) {
 			String url = message.getUrl();
-			Element href = doc.createElementNS(DAV_NAMESPACE, "href");
-			target.appendChild(href);
 			String file = url.substring(url.lastIndexOf("/") + 1);
-			href.appendChild(doc.createTextNode(file));
+			writer.element(DAV_NAMESPACE, "href", file);
 		}
-		ByteArrayOutputStream collector = new ByteArrayOutputStream();
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
-		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return new ByteArrayRequestEntity(collector.toByteArray(), XML_CONTENT_TYPE);
+		return writer.end().end().toByteArray();
 	}
 
-	private RequestEntity createAddBccEntity(Address[] addresses) throws Exception {
+	private byte[] createAddBccEntity(Address[] addresses) throws Exception {
 		StringBuilder recipientList = new StringBuilder();
 		for (Address address : addresses) {
 			if (recipientList.length() != 0)
 				recipientList.append(';');
 			recipientList.append(((InternetAddress) address).getAddress());
 		}
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		Document doc = dbf.newDocumentBuilder().newDocument();
-		Element propertyUpdate = doc.createElementNS(DAV_NAMESPACE, "propertyupdate");
-		doc.appendChild(propertyUpdate);
-		Element set = doc.createElementNS(DAV_NAMESPACE, "set");
-		propertyUpdate.appendChild(set);
-		Element prop = doc.createElementNS(DAV_NAMESPACE, "prop");
-		set.appendChild(prop);
-		Element bcc = doc.createElementNS(MAILHEADER_NAMESPACE, "bcc");
-		prop.appendChild(bcc);
-		bcc.appendChild(doc.createTextNode(recipientList.toString()));
-		ByteArrayOutputStream collector = new ByteArrayOutputStream();
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
-		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+		XmlWriter writer = new XmlWriter(DAV_NAMESPACE, MAILHEADER_NAMESPACE);
+		writer.start(DAV_NAMESPACE, "propertyupdate").start(DAV_NAMESPACE, "set").start(DAV_NAMESPACE, "prop");
+		writer.element(MAILHEADER_NAMESPACE, "bcc", recipientList.toString());
+		byte[] entity = writer.end().end().end().toByteArray();
 		if (session.getDebug()) {
-			transformer.transform(new DOMSource(doc), new StreamResult(session.getDebugOut()));
-			session.getDebugOut().println();
+			session.getDebugOut().println(new String(entity, "UTF-8"));
 		}
-		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return new ByteArrayRequestEntity(collector.toByteArray(), XML_CONTENT_TYPE);
+		return entity;
 	}
 
-	private static RequestEntity createMarkReadEntity(List<ExchangeMessage> messages) throws Exception {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		Document doc = dbf.newDocumentBuilder().newDocument();
-		Element propertyUpdate = doc.createElementNS(DAV_NAMESPACE, "propertyupdate");
-		doc.appendChild(propertyUpdate);
-		Element target = doc.createElementNS(DAV_NAMESPACE, "target");
-		propertyUpdate.appendChild(target);
+	private static byte[] createMarkReadEntity(List<ExchangeMessage> messages) throws Exception {
+		XmlWriter writer = new XmlWriter(DAV_NAMESPACE, HTTPMAIL_NAMESPACE);
+		writer.start(DAV_NAMESPACE, "propertyupdate").start(DAV_NAMESPACE, "target");
 		for (ExchangeMessage message : messages) {
 			String url = message.getUrl();
-			Element href = doc.createElementNS(DAV_NAMESPACE, "href");
-			target.appendChild(href);
 			String file = url.substring(url.lastIndexOf("/") + 1);
-			href.appendChild(doc.createTextNode(file));
-		}
-		Element set = doc.createElementNS(DAV_NAMESPACE, "set");
-		propertyUpdate.appendChild(set);
-		Element prop = doc.createElementNS(DAV_NAMESPACE, "prop");
-		set.appendChild(prop);
-		Element read = doc.createElementNS(HTTPMAIL_NAMESPACE, "read");
-		prop.appendChild(read);
-		read.appendChild(doc.createTextNode("1"));
-		ByteArrayOutputStream collector = new ByteArrayOutputStream();
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
-		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return new ByteArrayRequestEntity(collector.toByteArray(), XML_CONTENT_TYPE);
+			writer.element(DAV_NAMESPACE, "href", file);
+		}
+		writer.end().start(DAV_NAMESPACE, "set").start(DAV_NAMESPACE, "prop");
+		writer.element(HTTPMAIL_NAMESPACE, "read", "1");
+		return writer.end().end().end().toByteArray();
 	}
 
 	private static byte[] getResource(String resource) {
@@ -1313,10 +2067,14 @@ class ExchangeConnection {
 			try {
 				InputStream input = ExchangeConnection.class.getResourceAsStream(resource);
 				ByteArrayOutputStream collector = new ByteArrayOutputStream();
-				byte[] buf = new byte[65536];
-				int count;
-				while ((count = input.read(buf, 0, 65536)) != -1) {
-					collector.write(buf, 0, count);
+				byte[] buf = BufferPool.acquire();
+				try {
+					int count;
+					while ((count = input.read(buf, 0, buf.length)) != -1) {
+						collector.write(buf, 0, count);
+					}
+				} finally {
+					BufferPool.release(buf);
 				}
 				input.close();
 				collector.flush();
@@ -86,11 +86,70 @@ public interface ExchangeConstants {
      */
     public static final String DELETE_PROPERTY = "org.exjello.mail.delete";
 
+    /**
+     * Time in milliseconds that an authenticated session is kept after the
+     * last store or transport using it has been closed.  Stores and
+     * transports connecting to the same server, username and mailbox with
+     * the same HTTP settings (engine, timeouts, connection limits and local
+     * address) share a single session, so reconnecting within this window
+     * skips the sign-on entirely.  Defaults to 300000; zero disables sharing.
+     */
+    public static final String SESSION_TIMEOUT_PROPERTY =
+            "org.exjello.mail.sessiontimeout";
+
+    /**
+     * Directory in which sign-on state (forms-based authentication cookies
+     * and folder URIs, but never passwords) is cached across restarts.  A
+     * connection finding a valid entry skips the sign-on, falling back to
+     * it only if the server rejects the cached session.  Caching is
+     * disabled unless this is specified.  The directory, if created, and
+     * its files are made readable by the owning account only, and nothing
+     * is cached where that is not possible; an existing directory should
+     * be restricted likewise.
+     */
+    public static final String SESSION_CACHE_PROPERTY =
+            "org.exjello.mail.sessioncache";
+
+    /**
+     * Time in milliseconds for which cached sign-on state is considered
+     * valid.  Defaults to 3600000 (one hour).
+     */
+    public static final String SESSION_CACHE_TTL_PROPERTY =
+            "org.exjello.mail.sessioncachettl";
+
+    /**
+     * Property specifying the HTTP client used to talk to the server:
+     * "commons" (Jakarta Commons HttpClient, the default), "jdk" (the
+     * java.net.http client, which requires Java 11 and the jdk-http build
+     * profile), or the name of a class implementing
+     * {@link org.exjello.mail.HttpEngine} with a public no-argument
+     * constructor.
+     */
+    public static final String HTTP_ENGINE_PROPERTY =
+            "org.exjello.mail.httpengine";
+
+    /**
+     * Number of threads running the asynchronous operations of stores and
+     * transports (such as <code>openFolderAsync</code> and
+     * <code>sendMessageAsync</code>).  The pool is shared by the whole
+     * process and sized when it is first used.  Defaults to 4.
+     */
+    public static final String ASYNC_THREADS_PROPERTY =
+            "org.exjello.mail.asyncthreads";
+
     /**
      * Limit on the number of messages that will be retrieved.
      */
     public static final String LIMIT_PROPERTY = "org.exjello.mail.limit";
 
+    /**
+     * Order in which folder listings are returned: "creationdate",
+     * "datereceived" or "size", optionally followed by "asc" or "desc",
+     * e.g. "datereceived desc" to list the newest messages first.  Ties are
+     * broken by article number.  Defaults to "creationdate asc".
+     */
+    public static final String SORT_PROPERTY = "org.exjello.mail.sort";
+
     /**
      * Property specifying the mailbox to which the connection is made
      * (used for both SMTP and POP3). This is an e-mail address,
@@ -130,4 +189,86 @@ public interface ExchangeConstants {
      */
     public static final String LOCAL_ADDRESS_PROPERTY = "localaddress";
 
+    /**
+     * Maximum number of pooled connections that will be opened to the
+     * Outlook Web Access server at the same time.  Defaults to 8.
+     */
+    public static final String MAX_CONNECTIONS_PER_HOST_PROPERTY =
+            "maxconnectionsperhost";
+
+    /**
+     * Maximum number of pooled connections that will be opened in total.
+     * Defaults to 20.
+     */
+    public static final String MAX_TOTAL_CONNECTIONS_PROPERTY =
+            "maxtotalconnections";
+
+    /**
+     * Time in milliseconds that a pooled connection may stay idle before
+     * it is closed.  Defaults to 60000; zero or a negative value keeps idle
+     * connections open until the store or transport is closed.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "idletimeout";
+
+    /**
+     * Specifies whether pooled connections should be checked for staleness
+     * before being reused; "<code>false</code>" skips the check, saving a
+     * little time per request at the risk of an I/O error on a connection
+     * the server has dropped.  Defaults to "<code>true</code>".
+     */
+    public static final String STALE_CHECK_PROPERTY = "stalecheck";
+
+    /**
+     * Specifies whether folder listings and message downloads should be
+     * requested with gzip or deflate content encoding; "<code>true</code>"
+     * trades server and client CPU for less data on the wire, which pays
+     * off over slow or distant links.  Defaults to "<code>false</code>".
+     */
+    public static final String COMPRESSION_PROPERTY = "compression";
+
+    /**
+     * Largest number of unread response bytes that will be read and
+     * discarded to keep a connection reusable; a longer (or unknown-length)
+     * unwanted body is aborted by closing the connection instead.
+     * Defaults to 65536.
+     */
+    public static final String DRAIN_THRESHOLD_PROPERTY = "drainthreshold";
+
+    /**
+     * Number of messages listed per request when a folder is opened.  If
+     * positive, opening a folder lists only the first page and later pages
+     * are listed as messages beyond it are accessed; otherwise the whole
+     * folder is listed on open.  Defaults to 0.
+     */
+    public static final String PAGE_SIZE_PROPERTY = "pagesize";
+
+    /**
+     * Number of message objects an open folder keeps; beyond that, the
+     * least recently accessed messages (with any content they have loaded)
+     * are dropped and recreated if they are requested again.  Zero or a
+     * negative value keeps every message until the folder is closed.
+     * Defaults to 1000.
+     */
+    public static final String MESSAGE_CACHE_SIZE_PROPERTY =
+            "messagecachesize";
+
+    /**
+     * Minimum time in milliseconds between checks for new messages made
+     * when the message count of an open folder is requested.  A check
+     * lists only messages created since the newest message already listed.
+     * Zero or a negative value checks only when
+     * <code>hasNewMessages()</code> is called.  Defaults to 0.
+     */
+    public static final String REFRESH_INTERVAL_PROPERTY = "refreshinterval";
+
+    /**
+     * Interval in milliseconds at which open folders are checked for new
+     * messages in the background, using a WebDAV subscription where the
+     * server supports one and a cheap check of the folder's item count and
+     * modification time otherwise.  New messages are reported through
+     * <code>hasNewMessages()</code> and message count events.  Zero or a
+     * negative value disables the background check.  Defaults to 0.
+     */
+    public static final String WATCH_INTERVAL_PROPERTY = "watchinterval";
+
 }
@@ -25,11 +25,15 @@ package org.exjello.mail;
 import java.io.InputStream;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.Vector;
+import java.util.TreeSet;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.FolderNotFoundException;
@@ -37,10 +41,13 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.MethodNotSupportedException;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 
 import javax.mail.event.ConnectionEvent;
 
-class ExchangeFolder extends Folder {
+import javax.mail.search.SearchTerm;
+
+class ExchangeFolder extends Folder implements UIDFolder {
 
     public static final String INBOX = "INBOX";
     public static final String SENTITEMS = "SENT ITEMS";
@@ -53,13 +60,27 @@ class ExchangeFolder extends Folder {
 
     private final ExchangeConnection connection;
 
-    private List<String> messages;
+    private volatile HrefIndex messages;
+
+    private volatile UidIndex uids;
+
+    private volatile int messageCount;
+
+    private volatile MessageTable table;
+
+    private String latest;
 
-    private Vector<ExchangeMessage> cache;
+    private Set<String> latestUrls;
+
+    private volatile long lastRefresh;
+
+    private boolean newMessages;
+
+    private FolderWatcher watcher;
 
     private Set<InputStream> openStreams;
 
-    private boolean open = false;
+    private volatile boolean open = false;
 
 	public ExchangeFolder(ExchangeStore store, String name,
             ExchangeConnection connection) throws MessagingException {
@@ -82,12 +103,15 @@ class ExchangeFolder extends Folder {
                 if (expunge && mode == READ_WRITE) {
                     List<ExchangeMessage> deletedMessages =
                             new ArrayList<ExchangeMessage>();
-                    for (int i = cache.size() - 1; i >= 0; i--) {
-                        ExchangeMessage message = cache.get(i);
-                        if (message != null &&
-                                message.isSet(Flags.Flag.DELETED)) {
-                            deletedMessages.add(message);
+                    int count = Math.min(messages.size(), table.length());
+                    for (int i = count - 1; i >= 0; i--) {
+                        if (!table.isDeleted(i)) continue;
+                        ExchangeMessage message = table.get(i);
+                        if (message == null) {
+                            message = new ExchangeMessage(this, i + 1,
+                                    messages.get(i), connection);
                         }
+                        deletedMessages.add(message);
                     }
                     if (!deletedMessages.isEmpty()) {
                         try {
@@ -98,7 +122,10 @@ class ExchangeFolder extends Folder {
                     }
                 }
             } finally {
-                cache.clear();
+                if (watcher != null) {
+                    watcher.cancel();
+                    watcher = null;
+                }
                 if (openStreams != null) {
                     for (InputStream stream : openStreams) {
                         try {
@@ -108,7 +135,8 @@ class ExchangeFolder extends Folder {
                     openStreams.clear();
                 }
                 openStreams = null;
-                cache = null;
+                table = null;
+                latestUrls = null;
                 open = false;
             }
         }
@@ -155,31 +183,361 @@ class ExchangeFolder extends Folder {
 	}
 
 	public Message getMessage(int messageNumber) throws MessagingException {
-        if (!isOpen()) throw new IllegalStateException("Folder is closed.");
+        MessageTable table = checkOpen("getMessage");
+        int index = messageNumber - 1;
+        if (index < 0 || index >= messageCount) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        if (index >= messages.size()) {
+            synchronized (this) {
+                loadMessages(index);
+            }
+        }
+        return getMessage(table, index);
+	}
+
+    public Message[] getMessages(int start, int end)
+            throws MessagingException {
+        MessageTable table = checkOpen("getMessages");
+        if (start < 1 || end > messageCount) {
+            throw new ArrayIndexOutOfBoundsException(
+                    (start < 1) ? start - 1 : end - 1);
+        }
+        if (end > messages.size()) {
+            synchronized (this) {
+                loadMessages(end - 1);
+            }
+        }
+        Message[] result = new Message[Math.max(0, end - start + 1)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getMessage(table, start - 1 + i);
+        }
+        return result;
+    }
+
+    public Message[] getMessages(int[] messageNumbers)
+            throws MessagingException {
+        MessageTable table = checkOpen("getMessages");
+        int highest = 0;
+        for (int messageNumber : messageNumbers) {
+            if (messageNumber < 1 || messageNumber > messageCount) {
+                throw new ArrayIndexOutOfBoundsException(messageNumber - 1);
+            }
+            highest = Math.max(highest, messageNumber);
+        }
+        if (highest > messages.size()) {
+            synchronized (this) {
+                loadMessages(highest - 1);
+            }
+        }
+        Message[] result = new Message[messageNumbers.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getMessage(table, messageNumbers[i] - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Prefetches the envelope, flags and size of messages in one request,
+     * when any of them are in the profile; other items are loaded with the
+     * message content as before.
+     */
+    public void fetch(Message[] messages, FetchProfile profile)
+            throws MessagingException {
+        checkOpen("fetch");
+        if (!profile.contains(FetchProfile.Item.ENVELOPE) &&
+                !profile.contains(FetchProfile.Item.FLAGS) &&
+                        !profile.contains(FetchProfile.Item.CONTENT_INFO)) {
+            return;
+        }
+        List<ExchangeMessage> targets = new ArrayList<ExchangeMessage>();
+        for (Message message : messages) {
+            if (message instanceof ExchangeMessage &&
+                    message.getFolder() == this) {
+                targets.add((ExchangeMessage) message);
+            }
+        }
+        if (targets.isEmpty()) return;
+        try {
+            connection.fetch(targets);
+        } catch (MessagingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Searches the folder on the server where the term can be expressed
+     * as a SEARCH condition, matching the messages found against the term
+     * only if the condition is not exact; otherwise every message is
+     * matched on the client as usual.  Further pages of a paged folder are
+     * listed only while some of the messages found are not yet known.
+     */
+    public Message[] search(SearchTerm term) throws MessagingException {
+        MessageTable table = checkOpen("search");
+        SearchCompiler compiler = new SearchCompiler();
+        String condition = compiler.compile(term);
+        if (condition == null) return super.search(term);
+        MessagePage page;
+        try {
+            page = connection.search(name, condition);
+        } catch (MessagingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        Set<Integer> found = new TreeSet<Integer>(resolveListing(page));
+        List<Message> result = new ArrayList<Message>();
+        for (Integer index : found) {
+            Message message = getMessage(table, index.intValue());
+            if (compiler.isExact() || term.match(message)) result.add(message);
+        }
+        return result.toArray(new Message[result.size()]);
+    }
+
+    /**
+     * Lists the window of messages following the given cursor, as
+     * standalone messages; see {@link ExchangeStore#getMessageWindow}.
+     */
+    MessageWindow getWindow(String cursor, int count)
+            throws MessagingException {
+        if (ROOT.equals(getName())) {
+            throw new MethodNotSupportedException("getMessageWindow");
+        }
         if (!exists()) throw new FolderNotFoundException(this);
+        MessagePage page;
+        try {
+            page = connection.getWindow(name, cursor, count);
+        } catch (MessagingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        HrefIndex urls = page.getUrls();
+        UidIndex uids = page.getUids();
+        Message[] result = new Message[urls.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new ExchangeMessage(this, 0, urls.get(i),
+                    uids.get(i), connection);
+        }
+        return new MessageWindow(result, page.getCursor());
+    }
+
+    /**
+     * Resolves the messages of a page listed separately, listing further
+     * pages of a paged folder, one at a time, only while some of them are
+     * not yet known.
+     */
+    private List<Integer> resolveListing(MessagePage page)
+            throws MessagingException {
+        List<Integer> found = resolve(page);
+        while (found.size() < page.getUrls().size() &&
+                messages.size() < messageCount) {
+            synchronized (this) {
+                loadMessages(messages.size());
+            }
+            found = resolve(page);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the indexes in this folder of the messages of a page listed
+     * separately, in page order, leaving out any not listed in the folder.
+     */
+    private List<Integer> resolve(MessagePage page) {
+        HrefIndex messages = this.messages;
+        UidIndex uids = this.uids;
+        Map<String, Integer> positions = null;
+        List<Integer> found = new ArrayList<Integer>();
+        for (int i = 0; i < page.getUrls().size(); i++) {
+            int index = uids.indexOf(page.getUids().get(i));
+            if (index == -1) {
+                // without UIDs, fall back to matching URLs
+                if (positions == null) {
+                    positions = new HashMap<String, Integer>();
+                    for (int j = 0; j < messages.size(); j++) {
+                        positions.put(messages.get(j), Integer.valueOf(j));
+                    }
+                }
+                Integer position = positions.get(page.getUrls().get(i));
+                if (position == null) continue;
+                index = position.intValue();
+            }
+            found.add(Integer.valueOf(index));
+        }
+        return found;
+    }
+
+    private MessageTable checkOpen(String method) throws MessagingException {
         if (ROOT.equals(getName())) {
-            throw new MethodNotSupportedException("getMessage");
+            throw new MethodNotSupportedException(method);
         }
-        synchronized (this) {
-            int index = messageNumber - 1;
-            ExchangeMessage message = cache.get(index);
-            if (message == null) {
-                cache.set(index, (message = new ExchangeMessage(this,
-                        messageNumber, messages.get(index), connection)));
+        MessageTable table = this.table;
+        if (table == null) throw new IllegalStateException("Folder is closed.");
+        if (!exists()) throw new FolderNotFoundException(this);
+        return table;
+    }
+
+    /**
+     * Returns the message at an index already listed, creating it if the
+     * table does not hold it.
+     */
+    private ExchangeMessage getMessage(MessageTable table, int index)
+            throws MessagingException {
+        ExchangeMessage message = table.get(index);
+        if (message != null) return message;
+        HrefIndex messages = this.messages;
+        if (index >= messages.size()) {
+            // the folder has shrunk since it was opened
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        message = new ExchangeMessage(this, index + 1, messages.get(index),
+                connection);
+        if (table.isDeleted(index)) {
+            message.setFlags(new Flags(Flags.Flag.DELETED), true);
+        }
+        return table.putIfAbsent(index, message);
+    }
+
+    /**
+     * Returns the folder's UID validity, which the folder need not be open
+     * for.
+     */
+    public long getUIDValidity() throws MessagingException {
+        if (ROOT.equals(getName())) {
+            throw new MethodNotSupportedException("getUIDValidity");
+        }
+        if (!exists()) throw new FolderNotFoundException(this);
+        try {
+            return connection.getUidValidity(name);
+        } catch (MessagingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Returns the UID of a message in this folder, or -1 if the server did
+     * not report one.  Messages of a window carry their own UID, which is
+     * available whether or not the folder is open.
+     */
+    public long getUID(Message message) throws MessagingException {
+        if (message.getFolder() != this) {
+            throw new NoSuchElementException(
+                    "Message does not belong to this folder.");
+        }
+        int index = message.getMessageNumber() - 1;
+        if (index < 0 && message instanceof ExchangeMessage) {
+            return ((ExchangeMessage) message).getUid();
+        }
+        checkOpen("getUID");
+        UidIndex uids = this.uids;
+        return (index < 0 || index >= uids.size()) ? -1 : uids.get(index);
+    }
+
+    public Message getMessageByUID(long uid) throws MessagingException {
+        MessageTable table = checkOpen("getMessageByUID");
+        int index = uids.indexOf(uid);
+        if (index == -1 && messages.size() < messageCount) {
+            synchronized (this) {
+                loadMessages(messageCount - 1);
             }
-            return message;
+            index = uids.indexOf(uid);
         }
-	}
+        return (index == -1) ? null : getMessage(table, index);
+    }
 
+    /**
+     * Returns the messages whose UIDs fall in the given range, in folder
+     * order; <code>end</code> may be {@link UIDFolder#LASTUID}.
+     */
+    public Message[] getMessagesByUID(long start, long end)
+            throws MessagingException {
+        MessageTable table = checkOpen("getMessagesByUID");
+        if (messages.size() < messageCount) {
+            synchronized (this) {
+                loadMessages(messageCount - 1);
+            }
+        }
+        if (end == LASTUID) end = Long.MAX_VALUE;
+        UidIndex uids = this.uids;
+        List<Message> result = new ArrayList<Message>();
+        int count = Math.min(uids.size(), messages.size());
+        for (int i = 0; i < count; i++) {
+            long uid = uids.get(i);
+            if (uid >= start && uid <= end) result.add(getMessage(table, i));
+        }
+        return result.toArray(new Message[result.size()]);
+    }
+
+    /**
+     * Returns the messages with the given UIDs; elements for UIDs not in
+     * the folder are <code>null</code>.
+     */
+    public Message[] getMessagesByUID(long[] uids) throws MessagingException {
+        Message[] result = new Message[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            result[i] = getMessageByUID(uids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of messages in the folder; while the folder is
+     * closed, this is read from the folder's count properties without
+     * listing it, or is -1 if the listing is filtered in a way those do not
+     * reflect.
+     */
 	public int getMessageCount() throws MessagingException {
-        if (!isOpen()) return -1;
+        if (!isOpen()) {
+            if (ROOT.equals(getName()) || !exists()) return -1;
+            return getMessageCounts()[0];
+        }
         if (!exists()) throw new FolderNotFoundException(this);
         if (ROOT.equals(getName())) return 0;
-        synchronized (this) {
-            return messages.size();
+        long interval = connection.getRefreshInterval();
+        if (interval > 0 &&
+                System.currentTimeMillis() - lastRefresh >= interval) {
+            refresh(interval);
         }
+        return messageCount;
 	}
 
+    /**
+     * Returns the number of unread messages in the folder from its count
+     * properties, whether or not it is open, falling back to examining each
+     * message of an open folder whose listing is filtered in a way the
+     * counts do not reflect.
+     */
+    public int getUnreadMessageCount() throws MessagingException {
+        if (ROOT.equals(getName()) || !exists()) return -1;
+        int count = getMessageCounts()[1];
+        if (count == -1 && isOpen()) return super.getUnreadMessageCount();
+        return count;
+    }
+
+    /**
+     * Returns 0 for an open folder: the server has no notion of recent
+     * messages, so none carries the RECENT flag and there is no need to
+     * examine each of them.
+     */
+    public int getNewMessageCount() throws MessagingException {
+        return isOpen() ? 0 : -1;
+    }
+
+    private int[] getMessageCounts() throws MessagingException {
+        try {
+            return connection.getMessageCounts(name);
+        } catch (MessagingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+    }
+
 	public String getName() {
 		return name;
 	}
@@ -203,15 +561,30 @@ class ExchangeFolder extends Folder {
         return ROOT.equals(getName()) ? HOLDS_FOLDERS : HOLDS_MESSAGES;
 	}
 
+    /**
+     * Returns whether messages have been added since the last call.  A
+     * watched folder is brought up to date by its watcher; otherwise, or
+     * once the watcher has stopped, the folder is refreshed here once the
+     * refresh interval has elapsed, and never if no interval is configured.
+     */
 	public boolean hasNewMessages() throws MessagingException {
-		return false;
+        if (!isOpen()) return false;
+        boolean watched;
+        synchronized (this) {
+            watched = (watcher != null && !watcher.isCancelled());
+        }
+        long interval = connection.getRefreshInterval();
+        if (!watched && interval > 0) refresh(interval);
+        synchronized (this) {
+            boolean result = newMessages;
+            newMessages = false;
+            return result;
+        }
 	}
 
 	public boolean isOpen() {
         if (ROOT.equals(getName())) return false;
-        synchronized (this) {
-            return open;
-        }
+        return open;
 	}
 
 	public Folder[] list(String pattern) throws MessagingException {
@@ -238,14 +611,30 @@ class ExchangeFolder extends Folder {
         synchronized (this) {
             this.mode = mode;
             try {
-                messages = connection.getMessages(name);
+                int pageSize = connection.getPageSize();
+                MessagePage page = (pageSize > 0) ?
+                        connection.getMessages(name, 0, pageSize) :
+                                connection.getMessages(name);
+                messages = page.getUrls();
+                uids = page.getUids();
+                messageCount = Math.max(page.getTotal(), messages.size());
+                latest = null;
+                latestUrls = new HashSet<String>();
+                updateLatest(page);
+                lastRefresh = System.currentTimeMillis();
+                newMessages = false;
+                long watchInterval = connection.getWatchInterval();
+                if (watchInterval > 0) {
+                    watcher = FolderWatcher.start(this, connection,
+                            watchInterval);
+                }
             } catch (MessagingException ex) {
                 throw ex;
             } catch (Exception ex) {
                 throw new MessagingException(ex.getMessage(), ex);
             }
-            cache = new Vector<ExchangeMessage>(messages.size());
-            cache.setSize(cache.capacity());
+            table = new MessageTable(messageCount,
+                    connection.getMessageCacheSize());
             open = true;
         }
         notifyConnectionListeners(ConnectionEvent.OPENED);
@@ -255,6 +644,129 @@ class ExchangeFolder extends Folder {
 		throw new MethodNotSupportedException("renameTo");
 	}
 
+    /**
+     * Lists further pages of a paged folder until the message at the given
+     * index is known.  The message count follows the total reported with
+     * each page, which may only be an estimate.  Must be called while
+     * holding the folder's lock.
+     */
+    private void loadMessages(int index) throws MessagingException {
+        int pageSize = connection.getPageSize();
+        while (messages.size() <= index && messages.size() < messageCount) {
+            MessagePage page;
+            try {
+                page = connection.getMessages(name, messages.size(), pageSize);
+            } catch (MessagingException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new MessagingException(ex.getMessage(), ex);
+            }
+            if (page.getUrls().size() == 0) {
+                // the folder has shrunk since it was opened
+                messageCount = messages.size();
+                break;
+            }
+            messages.addAll(page.getUrls());
+            uids.addAll(page.getUids());
+            updateLatest(page);
+            int total = Math.max(page.getTotal(), messages.size());
+            if (total != messageCount) {
+                table.ensureLength(total);
+                messageCount = total;
+            }
+        }
+    }
+
+    /**
+     * Called by the folder's watcher when the folder has changed on the
+     * server.
+     */
+    void changed() throws MessagingException {
+        refresh(0);
+    }
+
+    private void updateLatest(MessagePage page) {
+        if (page.getLatest() == null) return;
+        int order = (latest == null) ? 1 : page.getLatest().compareTo(latest);
+        if (order > 0) {
+            latest = page.getLatest();
+            latestUrls.clear();
+        }
+        if (order >= 0) latestUrls.addAll(page.getLatestUrls());
+    }
+
+    /**
+     * Appends messages created since the newest message listed so far,
+     * notifying listeners of any that were found.  Unless the interval is
+     * zero, nothing is done if the last refresh was more recent than that.
+     * A paged folder is refreshed only once all its pages are listed.
+     * <p>
+     * The newest creation date is a high-water mark only for a listing of
+     * the whole folder, whatever its order.  A listing cut off by the
+     * message limit is not refreshed, as messages beyond the limit would
+     * otherwise appear as new; below the limit, new messages are appended
+     * only until it is reached.
+     */
+    private void refresh(long interval) throws MessagingException {
+        Message[] added;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!open || (interval > 0 && now - lastRefresh < interval)) {
+                return;
+            }
+            lastRefresh = now;
+            if (messages.size() < messageCount) return;
+            // without creation dates there is no mark to refresh from
+            if (latest == null && messages.size() > 0) return;
+            int limit = connection.getLimit();
+            int room = (limit > 0) ? limit - messages.size() :
+                    Integer.MAX_VALUE;
+            if (room <= 0) return;
+            MessagePage page;
+            try {
+                page = (latest == null) ? connection.getMessages(name) :
+                        connection.getMessagesSince(name, latest);
+            } catch (MessagingException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new MessagingException(ex.getMessage(), ex);
+            }
+            int start = messages.size();
+            HrefIndex urls = page.getUrls();
+            for (int i = 0; i < urls.size() && room > 0; i++) {
+                String url = urls.get(i);
+                if (!latestUrls.contains(url)) {
+                    messages.add(url);
+                    uids.add(page.getUids().get(i));
+                    room--;
+                }
+            }
+            updateLatest(page);
+            if (messages.size() == start) return;
+            // grow the table before publishing the count that covers it
+            table.ensureLength(messages.size());
+            messageCount = messages.size();
+            newMessages = true;
+            added = new Message[messageCount - start];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = getMessage(table, start + i);
+            }
+        }
+        notifyMessageAddedListeners(added);
+    }
+
+    /**
+     * Records a change to a message's deleted flag, so that it survives the
+     * message being dropped from the cache.
+     */
+    void setDeleted(int messageNumber, boolean set) {
+        MessageTable table = this.table;
+        if (table != null && messageNumber >= 1 &&
+                messageNumber <= table.length()) {
+            table.setDeleted(messageNumber - 1, set);
+        }
+    }
+
     public void register(InputStream stream) throws MessagingException {
         if (!isOpen()) throw new IllegalStateException("Folder is closed.");
         if (!exists()) throw new FolderNotFoundException(this);
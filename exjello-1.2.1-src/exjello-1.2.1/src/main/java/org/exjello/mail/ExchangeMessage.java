@@ -27,6 +27,7 @@ import java.io.IOException;
 
 import java.util.Enumeration;
 
+import javax.mail.Flags;
 import javax.mail.IllegalWriteException;
 import javax.mail.MessagingException;
 
@@ -38,13 +39,26 @@ class ExchangeMessage extends MimeMessage {
 
     private final String url;
 
+    private final long uid;
+
     private final ExchangeConnection connection;
 
+    private InternetHeaders envelope;
+
+    private int size = -1;
+
     public ExchangeMessage(ExchangeFolder folder, int messageNumber,
             String url, ExchangeConnection connection)
                     throws MessagingException {
+        this(folder, messageNumber, url, -1, connection);
+    }
+
+    public ExchangeMessage(ExchangeFolder folder, int messageNumber,
+            String url, long uid, ExchangeConnection connection)
+                    throws MessagingException {
         super(folder, messageNumber);
         this.url = url;
+        this.uid = uid;
         this.connection = connection;
     }
 
@@ -52,6 +66,45 @@ class ExchangeMessage extends MimeMessage {
         return url;
     }
 
+    /**
+     * Returns the UID the message was listed with, or -1 if there is none.
+     * Only messages listed outside their folder's own listing, such as
+     * those of a message window, carry their UID.
+     */
+    long getUid() {
+        return uid;
+    }
+
+    /**
+     * Stores prefetched envelope headers, read flag and size, which answer
+     * for the message until its content is downloaded.
+     */
+    void setFetched(InternetHeaders envelope, Boolean read, int size)
+            throws MessagingException {
+        synchronized (this) {
+            if (headers == null) this.envelope = envelope;
+            this.size = size;
+        }
+        if (read != null) {
+            super.setFlags(new Flags(Flags.Flag.SEEN), read.booleanValue());
+        }
+    }
+
+    public int getSize() throws MessagingException {
+        synchronized (this) {
+            if (contentStream == null && size >= 0) return size;
+        }
+        return super.getSize();
+    }
+
+    public void setFlags(Flags flag, boolean set) throws MessagingException {
+        super.setFlags(flag, set);
+        if (flag.contains(Flags.Flag.DELETED) &&
+                folder instanceof ExchangeFolder) {
+            ((ExchangeFolder) folder).setDeleted(getMessageNumber(), set);
+        }
+    }
+
     protected InputStream getContentStream() throws MessagingException {
         try {
             synchronized (this) {
@@ -60,6 +113,7 @@ class ExchangeMessage extends MimeMessage {
                     headers = new InternetHeaders(stream);
                     SharedInputStream shared = (SharedInputStream) stream;
                     contentStream = shared.newStream(shared.getPosition(), -1l);
+                    envelope = null;
                     stream = null;
                 }
                 return super.getContentStream();
@@ -73,6 +127,10 @@ class ExchangeMessage extends MimeMessage {
 
     public String[] getHeader(String name) throws MessagingException {
         synchronized (this) {
+            if (headers == null && envelope != null &&
+                    ExchangeConnection.isFetchedHeader(name)) {
+                return envelope.getHeader(name);
+            }
             if (headers == null) loadHeaders();
             return headers.getHeader(name);
         }
@@ -81,6 +139,10 @@ class ExchangeMessage extends MimeMessage {
     public String getHeader(String name, String delimiter)
             throws MessagingException {
         synchronized (this) {
+            if (headers == null && envelope != null &&
+                    ExchangeConnection.isFetchedHeader(name)) {
+                return envelope.getHeader(name, delimiter);
+            }
             if (headers == null) loadHeaders();
             return headers.getHeader(name, delimiter);
         }
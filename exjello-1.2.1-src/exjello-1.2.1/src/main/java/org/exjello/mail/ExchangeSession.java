@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+/**
+ * Authenticated state for a single mailbox: the HTTP engine (and with it
+ * any forms-based authentication cookies) plus the folder URIs discovered
+ * at sign-on.  Sessions are shared between stores and transports through
+ * the {@link SessionRegistry}.
+ */
+class ExchangeSession {
+
+    private final String server;
+
+    private final String username;
+
+    private final String mailbox;
+
+    private final String password;
+
+    private final String engineSettings;
+
+    private final long sessionTimeout;
+
+    private final HttpEngine engine;
+
+    private final Object signOnLock = new Object();
+
+    private volatile MailboxFolders folders;
+
+    private volatile boolean restored;
+
+    private volatile int generation;
+
+    private int references;
+
+    private long lastReleased;
+
+    private boolean closed;
+
+    public ExchangeSession(String server, String username, String mailbox,
+            String password, String engineSettings, long sessionTimeout,
+                    HttpEngine engine) {
+        this.server = server;
+        this.username = username;
+        this.mailbox = mailbox;
+        this.password = password;
+        this.engineSettings = engineSettings;
+        this.sessionTimeout = sessionTimeout;
+        this.engine = engine;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Returns the settings this session's engine was configured from.
+     */
+    public String getEngineSettings() {
+        return engineSettings;
+    }
+
+    /**
+     * Returns how long, in milliseconds, this session is kept once it is no
+     * longer in use.
+     */
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public HttpEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the lock held while signing on, so that concurrent connects
+     * sharing this session perform the sign-on only once.
+     */
+    public Object getSignOnLock() {
+        return signOnLock;
+    }
+
+    public MailboxFolders getFolders() {
+        return folders;
+    }
+
+    public void setFolders(MailboxFolders folders) {
+        this.folders = folders;
+    }
+
+    /**
+     * Returns whether this session's cookies and folder URIs were restored
+     * from the session cache and have not yet been accepted by the server.
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    public void setRestored(boolean restored) {
+        this.restored = restored;
+    }
+
+    /**
+     * Returns the number of times this session has been renewed after the
+     * server rejected it.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    void nextGeneration() {
+        generation++;
+    }
+
+    /**
+     * Returns whether this session was created with the given password;
+     * a session is never handed to a caller presenting different
+     * credentials.
+     */
+    boolean matches(String password) {
+        return (this.password == null) ? (password == null) :
+                this.password.equals(password);
+    }
+
+    synchronized boolean acquire() {
+        if (closed) return false;
+        references++;
+        return true;
+    }
+
+    synchronized int release() {
+        if (references > 0 && --references == 0) {
+            lastReleased = System.currentTimeMillis();
+        }
+        return references;
+    }
+
+    synchronized boolean isIdle(long now) {
+        return !closed && references == 0 &&
+                (now - lastReleased) >= sessionTimeout;
+    }
+
+    synchronized boolean isUnused() {
+        return references == 0;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        folders = null;
+        engine.shutdown();
+    }
+
+}
@@ -22,10 +22,18 @@ THE SOFTWARE.
 
 package org.exjello.mail;
 
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 import javax.mail.AuthenticationFailedException;
 import javax.mail.Folder;
+import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
@@ -88,6 +96,105 @@ public class ExchangeStore extends Store {
         return getFolder(url.getFile());
     }
 
+    /**
+     * Opens the named folder on the asynchronous operation pool, returning
+     * the open folder.
+     */
+    public Future<Folder> openFolderAsync(String name, int mode)
+            throws MessagingException {
+        return openFolderAsync(name, mode, null);
+    }
+
+    /**
+     * Opens the named folder on the asynchronous operation pool, notifying
+     * the callback with the open folder or the failure.
+     */
+    public Future<Folder> openFolderAsync(final String name, final int mode,
+            AsyncCallback<? super Folder> callback)
+                    throws MessagingException {
+        checkConnection();
+        return AsyncExecutor.submit(session, new Callable<Folder>() {
+            public Folder call() throws Exception {
+                Folder folder = getFolder(name);
+                folder.open(mode);
+                return folder;
+            }
+        }, callback);
+    }
+
+    /**
+     * Downloads the complete content of a message from an open folder on
+     * the asynchronous operation pool.
+     */
+    public Future<InputStream> getInputStreamAsync(Message message)
+            throws MessagingException {
+        return getInputStreamAsync(message, null);
+    }
+
+    /**
+     * Downloads the complete content of a message from an open folder on
+     * the asynchronous operation pool, notifying the callback with the
+     * content or the failure.
+     */
+    public Future<InputStream> getInputStreamAsync(Message message,
+            AsyncCallback<? super InputStream> callback)
+                    throws MessagingException {
+        final ExchangeConnection connection = getConnection();
+        final ExchangeMessage exchangeMessage = toExchangeMessage(message);
+        return AsyncExecutor.submit(session, new Callable<InputStream>() {
+            public InputStream call() throws Exception {
+                return connection.getInputStream(exchangeMessage);
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes messages (or marks them read, if the store is configured not
+     * to delete) on the asynchronous operation pool.
+     */
+    public Future<Void> deleteAsync(Message[] messages)
+            throws MessagingException {
+        return deleteAsync(messages, null);
+    }
+
+    /**
+     * Deletes messages (or marks them read) on the asynchronous operation
+     * pool, notifying the callback once they are deleted or the deletion
+     * has failed.
+     */
+    public Future<Void> deleteAsync(Message[] messages,
+            AsyncCallback<? super Void> callback) throws MessagingException {
+        final ExchangeConnection connection = getConnection();
+        final List<ExchangeMessage> exchangeMessages =
+                new ArrayList<ExchangeMessage>(messages.length);
+        for (Message message : messages) {
+            exchangeMessages.add(toExchangeMessage(message));
+        }
+        return AsyncExecutor.submit(session, new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.delete(exchangeMessages);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Lists the window of at most <code>count</code> messages of a folder
+     * that follows the given cursor, or the first window if the cursor is
+     * <code>null</code>, in one request.  The folder need not be open, and
+     * the messages returned are independent of any listing of it; see
+     * {@link MessageWindow}.
+     */
+    public MessageWindow getMessageWindow(Folder folder, String cursor,
+            int count) throws MessagingException {
+        checkConnection();
+        if (!(folder instanceof ExchangeFolder) || folder.getStore() != this) {
+            throw new MessagingException("Invalid folder; " +
+                    "only folders from this store are supported.");
+        }
+        return ((ExchangeFolder) folder).getWindow(cursor, count);
+    }
+
     public boolean isConnected() {
         synchronized (this) {
             return super.isConnected() && (connection != null);
@@ -97,8 +204,27 @@ public class ExchangeStore extends Store {
     protected void setConnected(boolean connected) {
         synchronized (this) {
             super.setConnected(connected);
-            if (!connected) connection = null;
+            if (!connected && connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    private ExchangeConnection getConnection() {
+        synchronized (this) {
+            checkConnection();
+            return connection;
+        }
+    }
+
+    private static ExchangeMessage toExchangeMessage(Message message)
+            throws MessagingException {
+        if (!(message instanceof ExchangeMessage)) {
+            throw new MessagingException("Invalid message; " +
+                    "only messages from this store are supported.");
         }
+        return (ExchangeMessage) message;
     }
 
     private void checkConnection() throws IllegalStateException {
@@ -27,6 +27,9 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 import javax.mail.Address;
 import javax.mail.AuthenticationFailedException;
 import javax.mail.Message;
@@ -112,16 +115,44 @@ public class ExchangeTransport extends Transport {
                 bccRecipients.isEmpty() ? (Address[]) null :
                         bccRecipients.toArray(
                                 new Address[bccRecipients.size()]));
+        ExchangeConnection connection;
         synchronized (this) {
             checkConnection();
-            try {
-                connection.send(mimeMessage);
-            } catch (Exception ex) {
-                throw new MessagingException(ex.getMessage(), ex);
-            }
+            connection = this.connection;
+        }
+        try {
+            connection.send(mimeMessage);
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
         }
 	}
 
+    /**
+     * Sends a message on the asynchronous operation pool.
+     */
+    public Future<Void> sendMessageAsync(Message message,
+            Address[] addresses) throws MessagingException {
+        return sendMessageAsync(message, addresses, null);
+    }
+
+    /**
+     * Sends a message on the asynchronous operation pool, notifying the
+     * callback once it has been sent or sending has failed.
+     */
+    public Future<Void> sendMessageAsync(final Message message,
+            final Address[] addresses, AsyncCallback<? super Void> callback)
+                    throws MessagingException {
+        synchronized (this) {
+            checkConnection();
+        }
+        return AsyncExecutor.submit(session, new Callable<Void>() {
+            public Void call() throws Exception {
+                sendMessage(message, addresses);
+                return null;
+            }
+        }, callback);
+    }
+
     protected boolean protocolConnect(String host, int port, String username,
             String password) throws MessagingException {
         synchronized (this) {
@@ -149,7 +180,10 @@ public class ExchangeTransport extends Transport {
     protected void setConnected(boolean connected) {
         synchronized (this) {
             super.setConnected(connected);
-            if (!connected) connection = null;
+            if (!connected && connection != null) {
+                connection.close();
+                connection = null;
+            }
         }
     }
 
@@ -0,0 +1,210 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background check for new messages in an open folder.  Where the server
+ * supports it, the watcher holds a WebDAV subscription to the folder's
+ * new-member notifications and polls it; otherwise it compares a cheap
+ * fingerprint of the folder (item count and last modification time).
+ * When a change is seen the folder is refreshed, which fires the
+ * corresponding message count events.  All watchers share one daemon
+ * timer thread, which only hands each due check to the asynchronous
+ * operation pool; a check still running when the next one is due is not
+ * started again.
+ * <p>
+ * A watcher stops when its folder is closed, when the connection it
+ * belongs to is closed, or after a run of consecutive failed checks.
+ */
+final class FolderWatcher extends TimerTask {
+
+    /**
+     * Subscription lifetime in seconds; subscriptions are renewed once half
+     * of it has passed.
+     */
+    private static final int SUBSCRIPTION_LIFETIME = 3600;
+
+    /**
+     * Number of consecutive failed checks after which the watcher stops.
+     */
+    private static final int MAX_FAILURES = 5;
+
+    private static Timer timer;
+
+    private final ExchangeFolder folder;
+
+    private final ExchangeConnection connection;
+
+    private final Executor executor;
+
+    private final AtomicBoolean checking = new AtomicBoolean();
+
+    private volatile boolean cancelled;
+
+    private boolean subscriptions = true;
+
+    private String subscriptionId;
+
+    private long subscribed;
+
+    private boolean lapsed;
+
+    private String fingerprint;
+
+    private int failures;
+
+    private FolderWatcher(ExchangeFolder folder,
+            ExchangeConnection connection, Executor executor) {
+        this.folder = folder;
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts watching a folder, checking it at the given interval.
+     */
+    public static FolderWatcher start(ExchangeFolder folder,
+            ExchangeConnection connection, long interval) {
+        FolderWatcher watcher = new FolderWatcher(folder, connection,
+                AsyncExecutor.getExecutor(connection.getSession()));
+        connection.addWatcher(watcher);
+        synchronized (FolderWatcher.class) {
+            if (timer == null) timer = new Timer("exjello-folder-watcher", true);
+            timer.schedule(watcher, interval, interval);
+        }
+        return watcher;
+    }
+
+    public void run() {
+        if (cancelled || !checking.compareAndSet(false, true)) return;
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        check();
+                    } finally {
+                        checking.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            checking.set(false);
+        }
+    }
+
+    private void check() {
+        if (cancelled) return;
+        try {
+            if (hasChanged() && !cancelled) folder.changed();
+            synchronized (this) {
+                failures = 0;
+            }
+        } catch (Exception ex) {
+            // a failed check is retried at the next interval, up to a limit
+            boolean exhausted;
+            synchronized (this) {
+                subscriptionId = null;
+                lapsed = true;
+                exhausted = (++failures >= MAX_FAILURES);
+            }
+            if (exhausted) cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops watching, dropping the subscription if one is held.
+     */
+    public boolean cancel() {
+        this.cancelled = true;
+        boolean cancelled = super.cancel();
+        connection.removeWatcher(this);
+        String subscriptionId;
+        synchronized (this) {
+            subscriptionId = this.subscriptionId;
+            this.subscriptionId = null;
+        }
+        if (subscriptionId != null) {
+            try {
+                connection.unsubscribe(folder.getName(), subscriptionId);
+            } catch (Exception ignore) { }
+        }
+        return cancelled;
+    }
+
+    private synchronized boolean hasChanged() throws Exception {
+        // once cancelled, no subscription may be taken out again
+        if (cancelled) return false;
+        String name = folder.getName();
+        if (subscriptions) {
+            long now = System.currentTimeMillis();
+            if (subscriptionId == null ||
+                    now - subscribed > SUBSCRIPTION_LIFETIME * 500L) {
+                String id = connection.subscribe(name, SUBSCRIPTION_LIFETIME,
+                        subscriptionId);
+                if (id == null && subscriptionId == null && !lapsed) {
+                    subscriptions = false;
+                } else if (id == null) {
+                    // the renewal was refused; subscribe afresh next time
+                    subscriptionId = null;
+                    lapsed = true;
+                    return true;
+                } else {
+                    // a replaced subscription may have missed changes
+                    if (subscriptionId != null && !id.equals(subscriptionId)) {
+                        lapsed = true;
+                    }
+                    subscriptionId = id;
+                    subscribed = now;
+                }
+            }
+            if (subscriptions) {
+                Boolean changed = connection.poll(name, subscriptionId);
+                if (changed == null) {
+                    subscriptionId = null;
+                    lapsed = true;
+                    return true;
+                }
+                boolean result = lapsed || changed.booleanValue();
+                lapsed = false;
+                return result;
+            }
+        }
+        String current = connection.probe(name);
+        boolean changed = (fingerprint != null && !fingerprint.equals(current));
+        fingerprint = current;
+        return changed;
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Compact, append-only list of the message URLs of a folder listing.
+ * Nearly every URL starts with the folder's own URL, so that prefix is
+ * stored once and only the UTF-8 encoded remainder of each URL is packed
+ * into a shared byte array; URLs not sharing the prefix are stored whole.
+ * Strings are created only when a URL is requested.
+ * <p>
+ * An index may be read by any number of threads while a single thread
+ * appends to it.  The prefix, arrays, flags and count are published
+ * together as an immutable snapshot through one volatile reference, which
+ * each read takes exactly once.  The writer fills array space beyond the
+ * published count, copying the arrays only when they must grow, and then
+ * publishes a new snapshot; entries a snapshot covers are never changed.
+ */
+final class HrefIndex {
+
+    private static final String ENCODING = "UTF-8";
+
+    private volatile Snapshot snapshot = new Snapshot(null, new byte[1024],
+            new int[65], new boolean[64], 0);
+
+    public int size() {
+        return snapshot.size;
+    }
+
+    public void add(String url) {
+        snapshot = append(snapshot, url);
+    }
+
+    public void addAll(HrefIndex index) {
+        Snapshot source = index.snapshot;
+        Snapshot target = snapshot;
+        for (int i = 0; i < source.size; i++) {
+            target = append(target, source.get(i));
+        }
+        snapshot = target;
+    }
+
+    public String get(int index) {
+        return snapshot.get(index);
+    }
+
+    /**
+     * Stores a URL after the entries of the given snapshot and returns the
+     * snapshot that covers it, without publishing it.
+     */
+    private static Snapshot append(Snapshot snapshot, String url) {
+        String prefix = snapshot.prefix;
+        if (prefix == null) prefix = url.substring(0, url.lastIndexOf('/') + 1);
+        boolean whole = !url.startsWith(prefix);
+        byte[] bytes = encode(whole ? url : url.substring(prefix.length()));
+        int size = snapshot.size;
+        byte[] data = snapshot.data;
+        int[] offsets = snapshot.offsets;
+        boolean[] unprefixed = snapshot.unprefixed;
+        int start = offsets[size];
+        if (start + bytes.length > data.length) {
+            byte[] newData = new byte[Math.max(data.length * 2,
+                    start + bytes.length)];
+            System.arraycopy(data, 0, newData, 0, start);
+            data = newData;
+        }
+        System.arraycopy(bytes, 0, data, start, bytes.length);
+        if (size + 2 > offsets.length) {
+            int[] newOffsets = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, size + 1);
+            offsets = newOffsets;
+        }
+        if (size == unprefixed.length) {
+            boolean[] newUnprefixed = new boolean[unprefixed.length * 2];
+            System.arraycopy(unprefixed, 0, newUnprefixed, 0, size);
+            unprefixed = newUnprefixed;
+        }
+        unprefixed[size] = whole;
+        offsets[size + 1] = start + bytes.length;
+        return new Snapshot(prefix, data, offsets, unprefixed, size + 1);
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    private static final class Snapshot {
+
+        final String prefix;
+
+        final byte[] data;
+
+        final int[] offsets;
+
+        // whether each URL is stored whole rather than after the prefix
+        final boolean[] unprefixed;
+
+        final int size;
+
+        Snapshot(String prefix, byte[] data, int[] offsets,
+                boolean[] unprefixed, int size) {
+            this.prefix = prefix;
+            this.data = data;
+            this.offsets = offsets;
+            this.unprefixed = unprefixed;
+            this.size = size;
+        }
+
+        String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index +
+                        ", Size: " + size);
+            }
+            String suffix;
+            try {
+                suffix = new String(data, offsets[index],
+                        offsets[index + 1] - offsets[index], ENCODING);
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+            return unprefixed[index] ? suffix : prefix + suffix;
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+
+/**
+ * HTTP transport used to talk to the Outlook Web Access server.  The
+ * engine is selected through the <code>org.exjello.mail.httpengine</code>
+ * property; <code>commons</code> (the default) is backed by Jakarta Commons
+ * HttpClient, <code>jdk</code> by the <code>java.net.http</code> client of
+ * Java 11 and later.  Any other value is taken as the name of a class
+ * implementing this interface with a public no-argument constructor;
+ * such an engine exchanges requests, responses and cookies through
+ * {@link HttpRequest}, {@link HttpResponse} and {@link SessionCookie}.
+ * <p>
+ * Engines never follow redirects, and must be safe for use by multiple
+ * threads once configured.
+ */
+public interface HttpEngine {
+
+    /**
+     * Configures the engine before its first use.
+     */
+    void configure(String server, int timeout, int connectionTimeout,
+            InetAddress localAddress, int maxConnectionsPerHost,
+                    int maxTotalConnections, int idleTimeout,
+                            boolean staleCheck) throws Exception;
+
+    /**
+     * Sets the credentials presented when the server requests HTTP
+     * authentication.  A username of the form <code>DOMAIN\\user</code>
+     * requests NTLM where the engine supports it.
+     */
+    void setCredentials(String username, String password) throws Exception;
+
+    /**
+     * Executes a request.  The returned response must be released by the
+     * caller.
+     */
+    HttpResponse execute(HttpRequest request) throws IOException;
+
+    SessionCookie[] getCookies();
+
+    void addCookies(SessionCookie[] cookies);
+
+    void clearCookies();
+
+    /**
+     * Closes all connections held by the engine.
+     */
+    void shutdown();
+
+}
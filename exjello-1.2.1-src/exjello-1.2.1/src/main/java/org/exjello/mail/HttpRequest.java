@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An engine-independent HTTP request.  Request bodies are either held in
+ * memory or read from a file, so a request can always be sent again.
+ */
+public final class HttpRequest {
+
+    private final String method;
+
+    private final String uri;
+
+    private final List<String> headerNames = new ArrayList<String>();
+
+    private final List<String> headerValues = new ArrayList<String>();
+
+    private byte[] body;
+
+    private File bodyFile;
+
+    private String contentType;
+
+    public HttpRequest(String method, String uri) {
+        this.method = method;
+        this.uri = uri;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public void addHeader(String name, String value) {
+        headerNames.add(name);
+        headerValues.add((value == null) ? "" : value);
+    }
+
+    public void setHeader(String name, String value) {
+        for (int i = headerNames.size() - 1; i >= 0; i--) {
+            if (headerNames.get(i).equalsIgnoreCase(name)) {
+                headerNames.remove(i);
+                headerValues.remove(i);
+            }
+        }
+        addHeader(name, value);
+    }
+
+    public int getHeaderCount() {
+        return headerNames.size();
+    }
+
+    public String getHeaderName(int index) {
+        return headerNames.get(index);
+    }
+
+    public String getHeaderValue(int index) {
+        return headerValues.get(index);
+    }
+
+    public void setBody(byte[] body, String contentType) {
+        this.body = body;
+        this.bodyFile = null;
+        this.contentType = contentType;
+    }
+
+    public void setBody(File bodyFile, String contentType) {
+        this.body = null;
+        this.bodyFile = bodyFile;
+        this.contentType = contentType;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public File getBodyFile() {
+        return bodyFile;
+    }
+
+    public boolean hasBody() {
+        return (body != null || bodyFile != null);
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response to an {@link HttpRequest}.  Until it is released, a response
+ * holds on to the connection it was received on.
+ */
+public interface HttpResponse {
+
+    int getStatus();
+
+    /**
+     * Returns the first value of the named response header, or
+     * <code>null</code>.
+     */
+    String getHeader(String name);
+
+    /**
+     * Returns the body as a stream, or <code>null</code> if there is none
+     * or the response has been released.
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Returns the connection to the engine's pool; any unread part of the
+     * body is consumed first.
+     */
+    void release();
+
+    /**
+     * Releases the response without reading the rest of the body, closing
+     * the connection it was received on.
+     */
+    void abort();
+
+}
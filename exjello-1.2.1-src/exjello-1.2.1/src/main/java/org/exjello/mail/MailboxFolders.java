@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+/**
+ * Immutable snapshot of the folder URIs discovered for a mailbox at
+ * sign-on.  Instances are published as a whole so that concurrent
+ * operations always see a consistent set of URIs without locking.
+ */
+final class MailboxFolders {
+
+    private final String inbox;
+
+    private final String drafts;
+
+    private final String sentitems;
+
+    private final String outbox;
+
+    private final String submissionUri;
+
+    public MailboxFolders(String inbox, String drafts, String sentitems,
+            String outbox, String submissionUri) {
+        this.inbox = inbox;
+        this.drafts = drafts;
+        this.sentitems = sentitems;
+        this.outbox = outbox;
+        this.submissionUri = submissionUri;
+    }
+
+    public String getInbox() {
+        return inbox;
+    }
+
+    public String getDrafts() {
+        return drafts;
+    }
+
+    public String getSentItems() {
+        return sentitems;
+    }
+
+    public String getOutbox() {
+        return outbox;
+    }
+
+    public String getSubmissionUri() {
+        return submissionUri;
+    }
+
+    public boolean canSend() {
+        return (drafts != null && submissionUri != null);
+    }
+
+    /**
+     * Returns the URI of the named folder; unknown names map to the inbox.
+     */
+    public String getFolder(String name) {
+        if (ExchangeFolder.SENTITEMS.equalsIgnoreCase(name)) return sentitems;
+        if (ExchangeFolder.OUTBOX.equalsIgnoreCase(name)) return outbox;
+        if (ExchangeFolder.DRAFT.equalsIgnoreCase(name)) return drafts;
+        return inbox;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.util.Set;
+
+/**
+ * One window of a folder listing: the message URLs and UIDs in the window,
+ * the number of messages in the whole listing, the newest creation date
+ * in the window along with the URLs of the messages created at that time,
+ * and the cursor for the next window where one was requested.
+ */
+final class MessagePage {
+
+    private final HrefIndex urls;
+
+    private final UidIndex uids;
+
+    private final int total;
+
+    private final String latest;
+
+    private final Set<String> latestUrls;
+
+    private final String cursor;
+
+    public MessagePage(HrefIndex urls, UidIndex uids, int total,
+            String latest, Set<String> latestUrls, String cursor) {
+        this.urls = urls;
+        this.uids = uids;
+        this.total = total;
+        this.latest = latest;
+        this.latestUrls = latestUrls;
+        this.cursor = cursor;
+    }
+
+    public HrefIndex getUrls() {
+        return urls;
+    }
+
+    public UidIndex getUids() {
+        return uids;
+    }
+
+    /**
+     * Returns the number of messages in the listing, as reported by the
+     * server when the page was read.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the newest <code>DAV:creationdate</code> in the page, or
+     * <code>null</code> if the page is empty.
+     */
+    public String getLatest() {
+        return latest;
+    }
+
+    public Set<String> getLatestUrls() {
+        return latestUrls;
+    }
+
+    /**
+     * Returns the cursor continuing the listing after this page, or
+     * <code>null</code> if there is none.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+}
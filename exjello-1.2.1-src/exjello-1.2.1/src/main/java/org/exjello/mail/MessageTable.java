@@ -0,0 +1,192 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free mapping from message index to the messages of an open folder.
+ * Messages are created lazily and installed with compare-and-set, so
+ * threads racing to create the same message agree on one instance.  If a
+ * capacity is set, a second-chance clock sweep drops the least recently
+ * used messages once more than that many are held.  Each slot also holds
+ * the message's deleted flag, which survives the message being dropped.
+ * <p>
+ * Slots are kept in fixed-size segments, so that the table can grow as
+ * new messages arrive without copying: a slot, once created, stays in
+ * place for the life of the table.
+ */
+final class MessageTable {
+
+    private static final int REFERENCED = 1;
+
+    private static final int DELETED = 2;
+
+    private static final int SEGMENT_BITS = 10;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private volatile Segment[] segments;
+
+    private volatile int length;
+
+    private final int capacity;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final AtomicInteger hand = new AtomicInteger();
+
+    /**
+     * Creates a table of the given length holding at most
+     * <code>capacity</code> messages; zero or a negative capacity holds
+     * every message.
+     */
+    public MessageTable(int length, int capacity) {
+        segments = new Segment[0];
+        this.capacity = capacity;
+        ensureLength(length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Grows the table to at least the given length.  Existing slots, and
+     * any messages and flags they hold, are unaffected; a thread that sees
+     * the new length also sees the slots added.
+     */
+    public synchronized void ensureLength(int length) {
+        if (length <= this.length) return;
+        int segmentCount = (length + SEGMENT_MASK) >>> SEGMENT_BITS;
+        if (segmentCount > segments.length) {
+            Segment[] grown = new Segment[segmentCount];
+            System.arraycopy(segments, 0, grown, 0, segments.length);
+            for (int i = segments.length; i < segmentCount; i++) {
+                grown[i] = new Segment();
+            }
+            segments = grown;
+        }
+        this.length = length;
+    }
+
+    public ExchangeMessage get(int index) {
+        Segment segment = getSegment(index);
+        int slot = index & SEGMENT_MASK;
+        ExchangeMessage message = segment.messages.get(slot);
+        if (message != null) setFlag(segment, slot, REFERENCED);
+        return message;
+    }
+
+    /**
+     * Installs a message unless another thread got there first, returning
+     * whichever message the table now holds.
+     */
+    public ExchangeMessage putIfAbsent(int index, ExchangeMessage message) {
+        Segment segment = getSegment(index);
+        int slot = index & SEGMENT_MASK;
+        setFlag(segment, slot, REFERENCED);
+        if (!segment.messages.compareAndSet(slot, null, message)) {
+            ExchangeMessage existing = segment.messages.get(slot);
+            if (existing != null) return existing;
+            // dropped in the meantime
+            return putIfAbsent(index, message);
+        }
+        if (capacity > 0 && count.incrementAndGet() > capacity) evict();
+        return message;
+    }
+
+    public boolean isDeleted(int index) {
+        return (getSegment(index).flags.get(index & SEGMENT_MASK) &
+                DELETED) != 0;
+    }
+
+    public void setDeleted(int index, boolean deleted) {
+        Segment segment = getSegment(index);
+        if (deleted) {
+            setFlag(segment, index & SEGMENT_MASK, DELETED);
+        } else {
+            clearFlag(segment, index & SEGMENT_MASK, DELETED);
+        }
+    }
+
+    private Segment getSegment(int index) {
+        if (index < 0 || index >= length) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return segments[index >>> SEGMENT_BITS];
+    }
+
+    private void evict() {
+        Segment[] segments = this.segments;
+        int length = Math.min(this.length, segments.length * SEGMENT_SIZE);
+        if (length == 0) return;
+        for (int i = 0; i < 2 * length; i++) {
+            int index = (hand.getAndIncrement() & Integer.MAX_VALUE) % length;
+            Segment segment = segments[index >>> SEGMENT_BITS];
+            int slot = index & SEGMENT_MASK;
+            ExchangeMessage message = segment.messages.get(slot);
+            if (message == null) continue;
+            if (clearFlag(segment, slot, REFERENCED)) continue;
+            if (segment.messages.compareAndSet(slot, message, null)) {
+                count.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private static void setFlag(Segment segment, int slot, int flag) {
+        int value;
+        do {
+            value = segment.flags.get(slot);
+            if ((value & flag) != 0) return;
+        } while (!segment.flags.compareAndSet(slot, value, value | flag));
+    }
+
+    /**
+     * Clears a flag, returning whether it was set.
+     */
+    private static boolean clearFlag(Segment segment, int slot, int flag) {
+        int value;
+        do {
+            value = segment.flags.get(slot);
+            if ((value & flag) == 0) return false;
+        } while (!segment.flags.compareAndSet(slot, value, value & ~flag));
+        return true;
+    }
+
+    private static final class Segment {
+
+        final AtomicReferenceArray<ExchangeMessage> messages =
+                new AtomicReferenceArray<ExchangeMessage>(SEGMENT_SIZE);
+
+        final AtomicIntegerArray flags = new AtomicIntegerArray(SEGMENT_SIZE);
+
+    }
+
+}
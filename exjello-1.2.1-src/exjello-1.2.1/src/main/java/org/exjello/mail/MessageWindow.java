@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import javax.mail.Message;
+
+/**
+ * A window of messages from a folder, in the store's sort order, together
+ * with an opaque cursor from which the next window continues.  Cursors
+ * identify a position by sort key and article number rather than by
+ * message number, so paging stays stable while messages arrive or are
+ * deleted; they remain valid across sessions as long as the sort order is
+ * unchanged.
+ * <p>
+ * The messages stand on their own: they have no message number (it is 0),
+ * their flags are not tracked by the folder, and they can be read, and
+ * deleted through the store, whether or not the folder is open.  The
+ * message limit does not apply to windows.
+ *
+ * @see ExchangeStore#getMessageWindow(javax.mail.Folder, String, int)
+ */
+public final class MessageWindow {
+
+    private final Message[] messages;
+
+    private final String cursor;
+
+    MessageWindow(Message[] messages, String cursor) {
+        this.messages = messages;
+        this.cursor = cursor;
+    }
+
+    public Message[] getMessages() {
+        return messages;
+    }
+
+    /**
+     * Returns the cursor from which the next window continues, or
+     * <code>null</code> if this is the last window.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.io.InputStream;
+
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Decodes a WebDAV multistatus response into one {@link Response} per
+ * resource, holding its <code>DAV:href</code> and the values of the
+ * properties requested by the caller.  Text is buffered only within those
+ * elements, so the rest of the document costs no more than the parser's
+ * own scanning.  Parsers are namespace aware and are pooled across
+ * requests, being reset after each document.
+ */
+final class MultistatusDecoder extends DefaultHandler {
+
+    /**
+     * Receives each resource of a multistatus response as it is decoded.
+     */
+    public interface Listener {
+
+        /**
+         * Called once per resource with a record that is reused for the
+         * next resource; values must be copied out of it to be kept.
+         */
+        public void response(Response response) throws SAXException;
+
+    }
+
+    /**
+     * The href and requested property values of one resource.
+     */
+    public static final class Response {
+
+        private final String[][] properties;
+
+        private final String[] values;
+
+        private String href;
+
+        Response(String[][] properties) {
+            this.properties = properties;
+            this.values = new String[properties.length];
+        }
+
+        public String getHref() {
+            return href;
+        }
+
+        /**
+         * Returns the trimmed value of a property, or <code>null</code> if
+         * the server returned none.
+         */
+        public String getString(String namespace, String name) {
+            for (int i = 0; i < properties.length; i++) {
+                if (properties[i][1].equals(name) &&
+                        properties[i][0].equals(namespace)) {
+                    return values[i];
+                }
+            }
+            throw new IllegalArgumentException("Property not requested: " +
+                    namespace + name);
+        }
+
+        public long getLong(String namespace, String name,
+                long defaultValue) {
+            String value = getString(namespace, name);
+            if (value == null) return defaultValue;
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+
+        public int getInt(String namespace, String name, int defaultValue) {
+            long value = getLong(namespace, name, defaultValue);
+            return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ?
+                    defaultValue : (int) value;
+        }
+
+        /**
+         * Returns the value of a boolean property, which the server reports
+         * as "1" or "0", or <code>null</code> if it returned none.
+         */
+        public Boolean getBoolean(String namespace, String name) {
+            String value = getString(namespace, name);
+            if (value == null) return null;
+            return Boolean.valueOf("1".equals(value) ||
+                    "true".equalsIgnoreCase(value));
+        }
+
+        void clear() {
+            href = null;
+            for (int i = 0; i < values.length; i++) values[i] = null;
+        }
+
+    }
+
+    private static final String DAV_NAMESPACE = "DAV:";
+
+    private static final int MAX_POOLED = 8;
+
+    private static final SAXParserFactory FACTORY;
+
+    private static final Queue<SAXParser> PARSERS =
+            new ConcurrentLinkedQueue<SAXParser>();
+
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private static final int NONE = -2;
+
+    private static final int HREF = -1;
+
+    static {
+        FACTORY = SAXParserFactory.newInstance();
+        FACTORY.setNamespaceAware(true);
+    }
+
+    private final String[][] properties;
+
+    private final Listener listener;
+
+    private final Response response;
+
+    private final StringBuilder content = new StringBuilder();
+
+    // the element whose text is being buffered
+    private int capture = NONE;
+
+    private int depth;
+
+    private int captureDepth;
+
+    private MultistatusDecoder(String[][] properties, Listener listener) {
+        this.properties = properties;
+        this.listener = listener;
+        this.response = new Response(properties);
+    }
+
+    /**
+     * Decodes a multistatus response, passing each resource with the values
+     * of the given properties (pairs of namespace and name) to the
+     * listener.
+     */
+    public static void decode(InputStream stream, String[][] properties,
+            Listener listener) throws Exception {
+        parse(stream, new MultistatusDecoder(properties, listener));
+    }
+
+    /**
+     * Parses a document with a pooled, namespace-aware parser.
+     */
+    public static void parse(InputStream stream, DefaultHandler handler)
+            throws Exception {
+        SAXParser parser = PARSERS.poll();
+        if (parser == null) {
+            synchronized (FACTORY) {
+                parser = FACTORY.newSAXParser();
+            }
+        } else {
+            POOLED.decrementAndGet();
+        }
+        parser.parse(stream, handler);
+        // a parser that failed is simply dropped
+        try {
+            parser.reset();
+        } catch (UnsupportedOperationException ex) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        PARSERS.offer(parser);
+    }
+
+    public void startElement(String uri, String localName, String qName,
+            Attributes attributes) throws SAXException {
+        depth++;
+        if (capture != NONE) return;
+        if ("href".equals(localName) && DAV_NAMESPACE.equals(uri)) {
+            if (response.href == null) capture = HREF;
+        } else {
+            for (int i = 0; i < properties.length; i++) {
+                // parser namespace strings are usually interned, so equals
+                // mostly resolves on identity
+                if (properties[i][1].equals(localName) &&
+                        properties[i][0].equals(uri)) {
+                    capture = i;
+                    break;
+                }
+            }
+        }
+        if (capture != NONE) {
+            captureDepth = depth;
+            content.setLength(0);
+        }
+    }
+
+    public void characters(char[] ch, int start, int length)
+            throws SAXException {
+        if (capture != NONE) content.append(ch, start, length);
+    }
+
+    public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+        if (capture != NONE && depth == captureDepth) {
+            if (capture == HREF) {
+                response.href = content.toString().trim();
+            } else {
+                response.values[capture] = content.toString().trim();
+            }
+            capture = NONE;
+        } else if (capture == NONE && "response".equals(localName) &&
+                DAV_NAMESPACE.equals(uri)) {
+            if (response.href != null) listener.response(response);
+            response.clear();
+        }
+        depth--;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.DateTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.IntegerComparisonTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * Translates a {@link SearchTerm} into a condition for the WHERE clause of
+ * a WebDAV SEARCH.  Terms that cannot be expressed on the server are left
+ * out of the condition where that only widens it (within an
+ * <code>AndTerm</code>), in which case the condition is not exact and the
+ * term must still be matched against each message found.
+ * <p>
+ * A negated condition is false, rather than true, for a message lacking
+ * one of the properties it tests, so a <code>NotTerm</code> is sent to the
+ * server only over properties every message has, and is always matched
+ * again on the client.  Likewise, the server only knows the size of the
+ * whole message, which is never less than the size of its content, so a
+ * <code>SizeTerm</code> is narrowed only by a lower bound and is matched
+ * again on the client.
+ * <p>
+ * Instances are used for a single term and are not thread safe.
+ */
+final class SearchCompiler {
+
+    private boolean exact = true;
+
+    // whether a condition tests a property that a message may lack
+    private boolean optional;
+
+    /**
+     * Returns a condition that every message matching the term satisfies,
+     * or <code>null</code> if the term cannot be narrowed on the server.
+     */
+    public String compile(SearchTerm term) {
+        if (term instanceof AndTerm) {
+            StringBuilder condition = new StringBuilder();
+            for (SearchTerm child : ((AndTerm) term).getTerms()) {
+                String part = compile(child);
+                if (part == null) {
+                    exact = false;
+                    continue;
+                }
+                if (condition.length() > 0) condition.append(" AND ");
+                condition.append(part);
+            }
+            return (condition.length() == 0) ? null :
+                    "(" + condition + ")";
+        }
+        if (term instanceof OrTerm) {
+            StringBuilder condition = new StringBuilder();
+            for (SearchTerm child : ((OrTerm) term).getTerms()) {
+                String part = compile(child);
+                if (part == null) return null;
+                if (condition.length() > 0) condition.append(" OR ");
+                condition.append(part);
+            }
+            return "(" + condition + ")";
+        }
+        if (term instanceof NotTerm) {
+            // the negation of a widened condition would narrow too far,
+            // as would that of one testing a property a message may lack
+            boolean outer = optional;
+            exact = true;
+            optional = false;
+            String part = compile(((NotTerm) term).getTerm());
+            boolean inner = exact && !optional;
+            exact = false;
+            optional = outer;
+            return (part == null || !inner) ? null : "NOT " + part;
+        }
+        if (term instanceof FromStringTerm) {
+            return like("urn:schemas:mailheader:from",
+                    ((FromStringTerm) term).getPattern());
+        }
+        if (term instanceof SubjectTerm) {
+            return like("urn:schemas:mailheader:subject",
+                    ((SubjectTerm) term).getPattern());
+        }
+        if (term instanceof RecipientStringTerm) {
+            RecipientStringTerm recipient = (RecipientStringTerm) term;
+            Message.RecipientType type = recipient.getRecipientType();
+            String property = (type == Message.RecipientType.TO) ?
+                    "urn:schemas:mailheader:to" :
+                            (type == Message.RecipientType.CC) ?
+                                    "urn:schemas:mailheader:cc" : null;
+            return (property == null) ? null :
+                    like(property, recipient.getPattern());
+        }
+        if (term instanceof ReceivedDateTerm) {
+            DateTerm date = (DateTerm) term;
+            String operator = getOperator(date.getComparison());
+            optional = true;
+            return (operator == null) ? null :
+                    "\"urn:schemas:httpmail:datereceived\" " + operator +
+                            " CAST(\"" + format(date.getDate()) +
+                                    "\" as 'dateTime')";
+        }
+        if (term instanceof SizeTerm) {
+            // the content is at most the size of the whole message, so only
+            // a lower bound on it also bounds the message
+            IntegerComparisonTerm size = (IntegerComparisonTerm) term;
+            int comparison = size.getComparison();
+            if (comparison != ComparisonTerm.GT &&
+                    comparison != ComparisonTerm.GE) {
+                return null;
+            }
+            exact = false;
+            return "\"DAV:getcontentlength\" " + getOperator(comparison) +
+                    " " + size.getNumber();
+        }
+        if (term instanceof FlagTerm) {
+            FlagTerm flag = (FlagTerm) term;
+            Flags flags = flag.getFlags();
+            if (!flags.contains(Flags.Flag.SEEN)) return null;
+            // other flags are kept on the client only
+            if (flags.getSystemFlags().length > 1 ||
+                    flags.getUserFlags().length > 0) {
+                exact = false;
+            }
+            return "\"urn:schemas:httpmail:read\" = " +
+                    (flag.getTestSet() ? "True" : "False");
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the compiled condition matches exactly the messages
+     * the term matches.
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    private String like(String property, String pattern) {
+        optional = true;
+        // wildcards in the pattern can only widen the match
+        if (pattern.indexOf('%') != -1 || pattern.indexOf('_') != -1) {
+            exact = false;
+        }
+        return "\"" + property + "\" LIKE '%" + pattern.replace("'", "''") +
+                "%'";
+    }
+
+    private static String getOperator(int comparison) {
+        switch (comparison) {
+        case ComparisonTerm.EQ:
+            return "=";
+        case ComparisonTerm.NE:
+            return "<>";
+        case ComparisonTerm.LT:
+            return "<";
+        case ComparisonTerm.LE:
+            return "<=";
+        case ComparisonTerm.GT:
+            return ">";
+        case ComparisonTerm.GE:
+            return ">=";
+        default:
+            return null;
+        }
+    }
+
+    private static String format(Date date) {
+        SimpleDateFormat format =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.lang.reflect.Method;
+
+import java.math.BigInteger;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Optional on-disk cache of sign-on state, so that a restarted process can
+ * reuse the forms-based authentication cookies and folder URIs of a
+ * mailbox instead of signing on again.  Each mailbox is kept in its own
+ * properties file within the cache directory; passwords are never written,
+ * only a salted PBKDF2 hash used to verify that a cached entry belongs to
+ * the caller.  The directory (if the cache creates it) and its files are
+ * restricted to the owning account; where that is not possible, nothing
+ * is written.
+ * <p>
+ * The hash is deliberately slow to compute, so each process derives it at
+ * most once per mailbox and password: the salt and hash are remembered in
+ * memory and reused for later loads and stores of the same entry.
+ */
+final class SessionCache {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final String CACHE_SUFFIX = ".session";
+
+    private static final String KDF = "PBKDF2WithHmacSHA256";
+
+    private static final int KDF_ITERATIONS = 100000;
+
+    private static final int MAX_DERIVED = 256;
+
+    /**
+     * Salt and hash last derived for each mailbox and password, keyed by a
+     * digest of both.
+     */
+    private static final ConcurrentMap<String, String[]> DERIVED =
+            new ConcurrentHashMap<String, String[]>();
+
+    private final File directory;
+
+    private final long timeToLive;
+
+    public SessionCache(File directory, long timeToLive) {
+        this.directory = directory;
+        this.timeToLive = timeToLive;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Loads the cached state for a mailbox, or returns <code>null</code> if
+     * there is no entry, it has expired, or it was stored for a different
+     * password.
+     */
+    public Entry load(String server, String username, String mailbox,
+            String password) {
+        File file = getFile(server, username, mailbox);
+        if (!file.isFile()) return null;
+        Properties properties = new Properties();
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+            long created = Long.parseLong(properties.getProperty("created"));
+            if (System.currentTimeMillis() - created > timeToLive ||
+                    !server.equals(properties.getProperty("server")) ||
+                    !username.equals(properties.getProperty("username")) ||
+                    !mailbox.equals(properties.getProperty("mailbox"))) {
+                file.delete();
+                return null;
+            }
+            if (!KDF.equals(properties.getProperty("kdf"))) {
+                // written with a fast digest by an earlier version
+                file.delete();
+                return null;
+            }
+            String salt = properties.getProperty("salt");
+            int iterations = Integer.parseInt(
+                    properties.getProperty("kdf.iterations"));
+            String key = getDerivedKey(server, username, mailbox, password);
+            String[] derived = DERIVED.get(key);
+            if (derived == null || !derived[0].equals(salt) ||
+                    Integer.parseInt(derived[1]) != iterations) {
+                derived = new String[] { salt, String.valueOf(iterations),
+                        hash(salt, password, iterations) };
+                remember(key, derived);
+            }
+            if (!MessageDigest.isEqual(derived[2].getBytes("UTF-8"),
+                    properties.getProperty("hash").getBytes("UTF-8"))) {
+                return null;
+            }
+            MailboxFolders folders = new MailboxFolders(
+                    properties.getProperty("folder.inbox"),
+                    properties.getProperty("folder.drafts"),
+                    properties.getProperty("folder.sentitems"),
+                    properties.getProperty("folder.outbox"),
+                    properties.getProperty("folder.sendmsg"));
+            if (folders.getInbox() == null) return null;
+            List<SessionCookie> cookies = new ArrayList<SessionCookie>();
+            Date now = new Date();
+            for (int i = 0; properties.getProperty("cookie." + i + ".name")
+                    != null; i++) {
+                String prefix = "cookie." + i + ".";
+                String expires = properties.getProperty(prefix + "expires");
+                SessionCookie cookie = new SessionCookie(
+                        properties.getProperty(prefix + "name"),
+                        properties.getProperty(prefix + "value"),
+                        properties.getProperty(prefix + "domain"),
+                        properties.getProperty(prefix + "path"),
+                        (expires == null) ? null :
+                                new Date(Long.parseLong(expires)),
+                        Boolean.parseBoolean(
+                                properties.getProperty(prefix + "secure")));
+                if (!cookie.isExpired(now)) cookies.add(cookie);
+            }
+            return new Entry(folders,
+                    cookies.toArray(new SessionCookie[cookies.size()]));
+        } catch (Exception ex) {
+            // unreadable or corrupt entry; behave as if there were none
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the sign-on state for a mailbox.  Failures are reported but
+     * never prevent the connection from being used.
+     */
+    public void store(String server, String username, String mailbox,
+            String password, MailboxFolders folders, SessionCookie[] cookies)
+                    throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("created",
+                String.valueOf(System.currentTimeMillis()));
+        properties.setProperty("server", server);
+        properties.setProperty("username", username);
+        properties.setProperty("mailbox", mailbox);
+        String key = getDerivedKey(server, username, mailbox, password);
+        String[] derived = DERIVED.get(key);
+        if (derived == null ||
+                Integer.parseInt(derived[1]) != KDF_ITERATIONS) {
+            String salt = new BigInteger(128, RANDOM).toString(
+                    Character.MAX_RADIX);
+            derived = new String[] { salt, String.valueOf(KDF_ITERATIONS),
+                    hash(salt, password, KDF_ITERATIONS) };
+            remember(key, derived);
+        }
+        properties.setProperty("salt", derived[0]);
+        properties.setProperty("kdf", KDF);
+        properties.setProperty("kdf.iterations", derived[1]);
+        properties.setProperty("hash", derived[2]);
+        setProperty(properties, "folder.inbox", folders.getInbox());
+        setProperty(properties, "folder.drafts", folders.getDrafts());
+        setProperty(properties, "folder.sentitems", folders.getSentItems());
+        setProperty(properties, "folder.outbox", folders.getOutbox());
+        setProperty(properties, "folder.sendmsg", folders.getSubmissionUri());
+        for (int i = 0; i < cookies.length; i++) {
+            String prefix = "cookie." + i + ".";
+            SessionCookie cookie = cookies[i];
+            properties.setProperty(prefix + "name", cookie.getName());
+            setProperty(properties, prefix + "value", cookie.getValue());
+            setProperty(properties, prefix + "domain", cookie.getDomain());
+            setProperty(properties, prefix + "path", cookie.getPath());
+            if (cookie.getExpires() != null) {
+                properties.setProperty(prefix + "expires",
+                        String.valueOf(cookie.getExpires().getTime()));
+            }
+            properties.setProperty(prefix + "secure",
+                    String.valueOf(cookie.isSecure()));
+        }
+        write(getFile(server, username, mailbox), properties,
+                "exJello session for " + mailbox);
+    }
+
+    public void remove(String server, String username, String mailbox) {
+        getFile(server, username, mailbox).delete();
+    }
+
+    /**
+     * Writes a properties file atomically, so that concurrent readers in
+     * other processes never observe a partial entry.  The file is
+     * restricted to its owner before anything is written to it.
+     */
+    void write(File file, Properties properties, String comment)
+            throws Exception {
+        if (!directory.isDirectory()) {
+            if (!directory.mkdirs()) {
+                throw new IllegalStateException(
+                        "Unable to create session cache directory: " +
+                                directory);
+            }
+            restrict(directory, true);
+        }
+        File tempFile = File.createTempFile("exjello", ".tmp", directory);
+        try {
+            restrict(tempFile, false);
+            OutputStream output = new FileOutputStream(tempFile);
+            try {
+                properties.store(output, comment);
+            } finally {
+                output.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IllegalStateException(
+                            "Unable to write session cache entry: " + file);
+                }
+            }
+        } finally {
+            if (tempFile.exists()) tempFile.delete();
+        }
+    }
+
+    private File getFile(String server, String username, String mailbox) {
+        return new File(directory,
+                digest(server, username + '\u0000' + mailbox) + CACHE_SUFFIX);
+    }
+
+    private static String getDerivedKey(String server, String username,
+            String mailbox, String password) {
+        return digest(server, username + '\u0000' + mailbox + '\u0000' +
+                password);
+    }
+
+    private static void remember(String key, String[] derived) {
+        if (DERIVED.size() >= MAX_DERIVED) DERIVED.clear();
+        DERIVED.put(key, derived);
+    }
+
+    private static void setProperty(Properties properties, String name,
+            String value) {
+        if (value != null) properties.setProperty(name, value);
+    }
+
+    /**
+     * Restricts a file or directory to its owner, failing if that is not
+     * possible.  File permissions have no API before Java 6, so the
+     * methods are looked up reflectively; without them nothing is cached.
+     */
+    private static void restrict(File file, boolean directory) {
+        boolean restricted;
+        try {
+            restricted = setPermission(file, "setReadable", false, false) &&
+                    setPermission(file, "setReadable", true, true) &&
+                    setPermission(file, "setWritable", false, false) &&
+                    setPermission(file, "setWritable", true, true) &&
+                    setPermission(file, "setExecutable", false, false) &&
+                    (!directory ||
+                            setPermission(file, "setExecutable", true, true));
+        } catch (Exception ex) {
+            restricted = false;
+        }
+        if (!restricted) {
+            file.delete();
+            throw new IllegalStateException(
+                    "Unable to restrict access to session cache: " + file);
+        }
+    }
+
+    private static boolean setPermission(File file, String name,
+            boolean enable, boolean ownerOnly) throws Exception {
+        Method method = File.class.getMethod(name, boolean.class,
+                boolean.class);
+        return ((Boolean) method.invoke(file, Boolean.valueOf(enable),
+                Boolean.valueOf(ownerOnly))).booleanValue();
+    }
+
+    /**
+     * Hashes a password with PBKDF2 (RFC 2898) over HMAC-SHA256, so that
+     * a stolen cache entry cannot cheaply be tested against guesses.
+     */
+    static String hash(String salt, String password, int iterations) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            byte[] key = (password == null) ? new byte[0] :
+                    password.getBytes("UTF-8");
+            mac.init(new SecretKeySpec((key.length == 0) ? new byte[1] : key,
+                    "HmacSHA256"));
+            mac.update(salt.getBytes("UTF-8"));
+            // a single block: INT(1)
+            byte[] u = mac.doFinal(new byte[] { 0, 0, 0, 1 });
+            byte[] result = u.clone();
+            for (int i = 1; i < iterations; i++) {
+                u = mac.doFinal(u);
+                for (int j = 0; j < result.length; j++) result[j] ^= u[j];
+            }
+            return new BigInteger(1, result).toString(16);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    static String digest(String salt, String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(salt.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            if (value != null) digest.update(value.getBytes("UTF-8"));
+            return new BigInteger(1, digest.digest()).toString(16);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Sign-on state restored from the cache.
+     */
+    static final class Entry {
+
+        private final MailboxFolders folders;
+
+        private final SessionCookie[] cookies;
+
+        Entry(MailboxFolders folders, SessionCookie[] cookies) {
+            this.folders = folders;
+            this.cookies = cookies;
+        }
+
+        public MailboxFolders getFolders() {
+            return folders;
+        }
+
+        public SessionCookie[] getCookies() {
+            return cookies;
+        }
+
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.Date;
+
+/**
+ * An engine-independent HTTP cookie, as held by a signed-on session.
+ */
+public final class SessionCookie {
+
+    private final String name;
+
+    private final String value;
+
+    private final String domain;
+
+    private final String path;
+
+    private final Date expires;
+
+    private final boolean secure;
+
+    public SessionCookie(String name, String value, String domain,
+            String path, Date expires, boolean secure) {
+        this.name = name;
+        this.value = value;
+        this.domain = domain;
+        this.path = path;
+        this.expires = expires;
+        this.secure = secure;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns when the cookie expires, or <code>null</code> for a cookie
+     * that lasts for the session.
+     */
+    public Date getExpires() {
+        return expires;
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    public boolean isExpired(Date now) {
+        return (expires != null && !expires.after(now));
+    }
+
+}
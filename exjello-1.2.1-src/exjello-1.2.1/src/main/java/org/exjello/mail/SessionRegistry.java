@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Process-wide registry of authenticated {@link ExchangeSession}s, keyed by
+ * server, username, mailbox and HTTP engine settings.  Stores and
+ * transports connecting to the same mailbox with the same settings share
+ * one session, so a reconnect reuses the existing sign-on instead of
+ * repeating it; a connection with different pool sizes, timeouts, local
+ * address or engine gets a session of its own.  Sessions are reference
+ * counted; once the last user has released a session it is kept for the
+ * configured idle timeout and then shut down.
+ */
+final class SessionRegistry {
+
+    private static final Map<String, ExchangeSession> SESSIONS =
+            new HashMap<String, ExchangeSession>();
+
+    private static Timer timer;
+
+    private SessionRegistry() { }
+
+    /**
+     * Obtains a session for the given connection, creating one if no
+     * matching session is registered.  If the connection's session timeout
+     * is not positive, sharing is disabled and a private session is
+     * returned.
+     */
+    public static ExchangeSession acquire(ExchangeConnection connection)
+            throws Exception {
+        if (connection.getSessionTimeout() <= 0) {
+            ExchangeSession session = connection.createSession();
+            session.acquire();
+            return session;
+        }
+        String key = getKey(connection.getServer(), connection.getUsername(),
+                connection.getMailbox(), connection.getEngineSettings());
+        ExchangeSession replaced = null;
+        try {
+            synchronized (SESSIONS) {
+                ExchangeSession session = SESSIONS.get(key);
+                if (session != null &&
+                        !session.matches(connection.getPassword())) {
+                    if (!session.isUnused()) {
+                        // never hand out another user's sign-on
+                        session = connection.createSession();
+                        session.acquire();
+                        return session;
+                    }
+                    SESSIONS.remove(key);
+                    replaced = session;
+                    session = null;
+                }
+                if (session == null || !session.acquire()) {
+                    session = connection.createSession();
+                    session.acquire();
+                    SESSIONS.put(key, session);
+                }
+                return session;
+            }
+        } finally {
+            if (replaced != null) replaced.close();
+        }
+    }
+
+    /**
+     * Releases a session obtained from {@link #acquire}.  Unshared sessions
+     * are closed immediately; shared sessions are closed once they have
+     * been unused for their session timeout.
+     */
+    public static void release(ExchangeSession session) {
+        if (session.release() > 0) return;
+        long timeout = session.getSessionTimeout();
+        String key = getKey(session.getServer(), session.getUsername(),
+                session.getMailbox(), session.getEngineSettings());
+        synchronized (SESSIONS) {
+            boolean registered = (SESSIONS.get(key) == session);
+            if (registered && timeout > 0) {
+                if (timer == null) {
+                    timer = new Timer("exjello-session-expiry", true);
+                }
+                timer.schedule(new TimerTask() {
+                    public void run() {
+                        expire();
+                    }
+                }, timeout);
+                return;
+            }
+            if (registered) SESSIONS.remove(key);
+        }
+        session.close();
+    }
+
+    private static void expire() {
+        long now = System.currentTimeMillis();
+        Map<String, ExchangeSession> expired =
+                new HashMap<String, ExchangeSession>();
+        synchronized (SESSIONS) {
+            Iterator<Map.Entry<String, ExchangeSession>> entries =
+                    SESSIONS.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, ExchangeSession> entry = entries.next();
+                if (entry.getValue().isIdle(now)) {
+                    expired.put(entry.getKey(), entry.getValue());
+                    entries.remove();
+                }
+            }
+        }
+        for (ExchangeSession session : expired.values()) session.close();
+    }
+
+    private static String getKey(String server, String username,
+            String mailbox, String engineSettings) {
+        return server + '\u0000' + username + '\u0000' + mailbox + '\u0000' +
+                engineSettings;
+    }
+
+}
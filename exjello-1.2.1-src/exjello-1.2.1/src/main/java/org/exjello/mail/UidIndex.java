@@ -0,0 +1,109 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+/**
+ * Append-only list of the UIDs of a folder listing, parallel to its
+ * {@link HrefIndex}, with an open-addressing hash from UID back to listing
+ * position so that messages are found by UID in constant time.  Entries
+ * without a UID are stored as -1 and are not indexed.
+ */
+final class UidIndex {
+
+    private long[] uids = new long[64];
+
+    // listing position plus one of each indexed UID; 0 marks an empty slot
+    private int[] slots = new int[128];
+
+    private int size;
+
+    private int indexed;
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void add(long uid) {
+        if (size == uids.length) {
+            long[] newUids = new long[uids.length * 2];
+            System.arraycopy(uids, 0, newUids, 0, size);
+            uids = newUids;
+        }
+        uids[size++] = uid;
+        if (uid < 0 || find(uid) >= 0) return;
+        if ((indexed + 1) * 2 > slots.length) {
+            int[] oldSlots = slots;
+            slots = new int[oldSlots.length * 2];
+            for (int slot : oldSlots) {
+                if (slot != 0) insert(slot);
+            }
+        }
+        insert(size);
+        indexed++;
+    }
+
+    public synchronized void addAll(UidIndex index) {
+        for (int i = 0; i < index.size(); i++) add(index.get(i));
+    }
+
+    /**
+     * Returns the UID at a listing position, or -1 if it has none.
+     */
+    public synchronized long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index +
+                    ", Size: " + size);
+        }
+        return uids[index];
+    }
+
+    /**
+     * Returns the listing position of the given UID, or -1 if it is not
+     * listed.
+     */
+    public synchronized int indexOf(long uid) {
+        return (uid < 0) ? -1 : find(uid);
+    }
+
+    private int find(long uid) {
+        int mask = slots.length - 1;
+        for (int i = hash(uid) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (uids[slots[i] - 1] == uid) return slots[i] - 1;
+        }
+        return -1;
+    }
+
+    private void insert(int slot) {
+        int mask = slots.length - 1;
+        int i = hash(uids[slot - 1]) & mask;
+        while (slots[i] != 0) i = (i + 1) & mask;
+        slots[i] = slot;
+    }
+
+    private static int hash(long uid) {
+        long h = uid * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal streaming writer for the XML bodies of WebDAV requests.  Markup
+ * and escaped text are encoded as UTF-8 straight into a byte buffer taken
+ * from the {@link BufferPool}, without building a document first.  All
+ * namespaces are declared on the root element, each with its own prefix.
+ * <p>
+ * A writer produces a single document and is not thread safe.
+ */
+final class XmlWriter {
+
+    private final String[] namespaces;
+
+    private final List<String> elements = new ArrayList<String>();
+
+    private byte[] buffer;
+
+    private boolean pooled;
+
+    private int length;
+
+    private boolean startTagOpen;
+
+    public XmlWriter(String... namespaces) {
+        this.namespaces = namespaces;
+        buffer = BufferPool.acquire();
+        pooled = true;
+        append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+    }
+
+    public XmlWriter start(String namespace, String name) {
+        closeStartTag();
+        String qualifiedName = getPrefix(namespace) + ':' + name;
+        write('<');
+        append(qualifiedName);
+        if (elements.isEmpty()) {
+            for (int i = 0; i < namespaces.length; i++) {
+                append(" xmlns:");
+                append(getPrefix(namespaces[i]));
+                append("=\"");
+                escape(namespaces[i], true);
+                write('"');
+            }
+        }
+        elements.add(qualifiedName);
+        startTagOpen = true;
+        return this;
+    }
+
+    public XmlWriter text(String text) {
+        if (elements.isEmpty()) {
+            throw new IllegalStateException("Text outside of an element.");
+        }
+        closeStartTag();
+        escape(text, false);
+        return this;
+    }
+
+    public XmlWriter end() {
+        String qualifiedName = elements.remove(elements.size() - 1);
+        if (startTagOpen) {
+            append("/>");
+            startTagOpen = false;
+        } else {
+            append("</");
+            append(qualifiedName);
+            write('>');
+        }
+        return this;
+    }
+
+    /**
+     * Writes an empty element.
+     */
+    public XmlWriter element(String namespace, String name) {
+        return start(namespace, name).end();
+    }
+
+    /**
+     * Writes an element containing only the given text.
+     */
+    public XmlWriter element(String namespace, String name, String text) {
+        return start(namespace, name).text(text).end();
+    }
+
+    /**
+     * Returns the completed document, returning the buffer to the pool; the
+     * writer cannot be used afterwards.
+     */
+    public byte[] toByteArray() {
+        if (!elements.isEmpty()) {
+            throw new IllegalStateException("Unclosed element: " +
+                    elements.get(elements.size() - 1));
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        if (pooled) BufferPool.release(buffer);
+        buffer = null;
+        return result;
+    }
+
+    private String getPrefix(String namespace) {
+        for (int i = 0; i < namespaces.length; i++) {
+            if (namespaces[i].equals(namespace)) {
+                return String.valueOf((char) ('a' + i));
+            }
+        }
+        throw new IllegalArgumentException("Undeclared namespace: " +
+                namespace);
+    }
+
+    private void closeStartTag() {
+        if (startTagOpen) {
+            write('>');
+            startTagOpen = false;
+        }
+    }
+
+    private void escape(String text, boolean attribute) {
+        int count = text.length();
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                append("&amp;");
+                break;
+            case '<':
+                append("&lt;");
+                break;
+            case '>':
+                append("&gt;");
+                break;
+            case '"':
+                if (attribute) {
+                    append("&quot;");
+                } else {
+                    write('"');
+                }
+                break;
+            case '\r':
+                append("&#13;");
+                break;
+            case '\t':
+            case '\n':
+                write(c);
+                break;
+            default:
+                if (c < 0x20) {
+                    // not representable in XML 1.0
+                } else if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < count &&
+                        Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c,
+                            text.charAt(++i));
+                    write(0xf0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3f));
+                    write(0x80 | ((codePoint >> 6) & 0x3f));
+                    write(0x80 | (codePoint & 0x3f));
+                } else if (Character.isHighSurrogate(c) ||
+                        Character.isLowSurrogate(c)) {
+                    write('?');
+                } else {
+                    write(0xe0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3f));
+                    write(0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends markup, which is always ASCII.
+     */
+    private void append(String markup) {
+        int count = markup.length();
+        for (int i = 0; i < count; i++) write(markup.charAt(i));
+    }
+
+    private void write(int b) {
+        if (length == buffer.length) {
+            byte[] newBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            if (pooled) BufferPool.release(buffer);
+            pooled = false;
+            buffer = newBuffer;
+        }
+        buffer[length++] = (byte) b;
+    }
+
+}
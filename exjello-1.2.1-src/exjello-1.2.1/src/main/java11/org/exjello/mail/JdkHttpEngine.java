@@ -0,0 +1,241 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.net.Authenticator;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.InetAddress;
+import java.net.PasswordAuthentication;
+import java.net.URI;
+
+import java.net.http.HttpClient;
+
+import java.time.Duration;
+
+import java.util.Date;
+import java.util.List;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link HttpEngine} backed by the <code>java.net.http</code> client of
+ * Java 11 and later.  This engine is compiled only by the
+ * <code>jdk-http</code> build profile.
+ * <p>
+ * The JDK client manages its own connection pool, so the connection limits,
+ * idle timeout, stale checking and local address settings are not applied;
+ * it supports Basic authentication only, so NTLM requires the commons
+ * engine.  A single client is built when the engine is configured; its
+ * authenticator reads the credentials current at the time of each
+ * challenge, so signing on again does not build a new client.
+ */
+class JdkHttpEngine implements HttpEngine {
+
+    private URI server;
+
+    private int timeout;
+
+    private CookieManager cookieManager;
+
+    private volatile HttpClient client;
+
+    private ExecutorService executor;
+
+    private volatile PasswordAuthentication credentials;
+
+    public void configure(String server, int timeout, int connectionTimeout,
+            InetAddress localAddress, int maxConnectionsPerHost,
+                    int maxTotalConnections, int idleTimeout,
+                            boolean staleCheck) {
+        this.server = URI.create(server);
+        this.timeout = timeout;
+        cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "exjello-jdk-http");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .cookieHandler(cookieManager)
+                .executor(executor)
+                .authenticator(new Authenticator() {
+                    protected PasswordAuthentication
+                            getPasswordAuthentication() {
+                        return credentials;
+                    }
+                });
+        if (connectionTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectionTimeout));
+        }
+        client = builder.build();
+    }
+
+    public void setCredentials(String username, String password) {
+        credentials = (username == null) ? null :
+                new PasswordAuthentication(username, (password == null) ?
+                        new char[0] : password.toCharArray());
+    }
+
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        java.net.http.HttpRequest.BodyPublisher body;
+        if (request.getBody() != null) {
+            body = java.net.http.HttpRequest.BodyPublishers.ofByteArray(
+                    request.getBody());
+        } else if (request.getBodyFile() != null) {
+            body = java.net.http.HttpRequest.BodyPublishers.ofFile(
+                    request.getBodyFile().toPath());
+        } else {
+            body = java.net.http.HttpRequest.BodyPublishers.noBody();
+        }
+        java.net.http.HttpRequest.Builder builder =
+                java.net.http.HttpRequest.newBuilder(
+                        server.resolve(request.getUri()))
+                                .method(request.getMethod(), body);
+        if (timeout > 0) builder.timeout(Duration.ofMillis(timeout));
+        if (request.getContentType() != null) {
+            builder.header("Content-Type", request.getContentType());
+        }
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            builder.header(request.getHeaderName(i),
+                    request.getHeaderValue(i));
+        }
+        HttpClient client = this.client;
+        if (client == null) {
+            throw new IOException("HTTP engine has been shut down.");
+        }
+        try {
+            return new JdkHttpResponse(client.send(builder.build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofInputStream()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ioe = new InterruptedIOException(
+                    "Request interrupted: " + request.getUri());
+            ioe.initCause(ex);
+            throw ioe;
+        }
+    }
+
+    public SessionCookie[] getCookies() {
+        List<HttpCookie> cookies = cookieManager.getCookieStore().getCookies();
+        SessionCookie[] sessionCookies = new SessionCookie[cookies.size()];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < sessionCookies.length; i++) {
+            HttpCookie cookie = cookies.get(i);
+            long maxAge = cookie.getMaxAge();
+            sessionCookies[i] = new SessionCookie(cookie.getName(),
+                    cookie.getValue(), cookie.getDomain(), cookie.getPath(),
+                            (maxAge < 0) ? null : new Date(now + maxAge * 1000),
+                                    cookie.getSecure());
+        }
+        return sessionCookies;
+    }
+
+    public void addCookies(SessionCookie[] cookies) {
+        long now = System.currentTimeMillis();
+        for (SessionCookie cookie : cookies) {
+            HttpCookie httpCookie = new HttpCookie(cookie.getName(),
+                    cookie.getValue());
+            httpCookie.setDomain(cookie.getDomain());
+            httpCookie.setPath(cookie.getPath());
+            httpCookie.setSecure(cookie.isSecure());
+            if (cookie.getExpires() != null) {
+                httpCookie.setMaxAge(Math.max(0,
+                        (cookie.getExpires().getTime() - now) / 1000));
+            }
+            cookieManager.getCookieStore().add(server, httpCookie);
+        }
+    }
+
+    public void clearCookies() {
+        cookieManager.getCookieStore().removeAll();
+    }
+
+    public void shutdown() {
+        HttpClient client = this.client;
+        this.client = null;
+        credentials = null;
+        if (client != null) {
+            try {
+                // Java 21 and later close the client's connections directly
+                HttpClient.class.getMethod("shutdownNow").invoke(client);
+            } catch (Exception ignore) {
+                // earlier clients release them once they are unreachable
+            }
+        }
+        if (executor != null) executor.shutdownNow();
+    }
+
+    private static class JdkHttpResponse implements HttpResponse {
+
+        private final java.net.http.HttpResponse<InputStream> response;
+
+        private InputStream body;
+
+        public JdkHttpResponse(
+                java.net.http.HttpResponse<InputStream> response) {
+            this.response = response;
+            this.body = response.body();
+        }
+
+        public int getStatus() {
+            return response.statusCode();
+        }
+
+        public String getHeader(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public void abort() {
+            // closing an unfinished body closes its connection
+            release();
+        }
+
+        public void release() {
+            InputStream body = this.body;
+            if (body == null) return;
+            this.body = null;
+            try {
+                body.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 SELECT
-    "urn:schemas:httpmail:fromemail"
+    "urn:schemas:httpmail:fromemail", "DAV:creationdate",
+    "http://schemas.microsoft.com/mapi/proptag/x0e230003"
 FROM "" WHERE
     "DAV:iscollection" = False AND
     "DAV:ishidden" = False
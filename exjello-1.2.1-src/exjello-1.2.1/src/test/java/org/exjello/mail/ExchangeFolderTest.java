@@ -0,0 +1,125 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Properties;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+
+import javax.mail.search.SubjectTerm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExchangeFolderTest {
+
+    private StandInServer server;
+
+    private ExchangeStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) store.close();
+        server.close();
+    }
+
+    @Test
+    public void uidValidityIsFolderCreationTime() throws Exception {
+        store = server.connect(new Properties());
+        ExchangeFolder folder =
+                (ExchangeFolder) store.getFolder(ExchangeFolder.INBOX);
+        assertEquals(1748779200L, folder.getUIDValidity());
+        assertFalse(folder.isOpen());
+        folder.open(Folder.READ_ONLY);
+        assertEquals(1748779200L, folder.getUIDValidity());
+    }
+
+    @Test
+    public void windowsPageThroughClosedFolder() throws Exception {
+        for (int i = 1; i <= 5; i++) server.deliver();
+        store = server.connect(new Properties());
+        Folder folder = store.getFolder(ExchangeFolder.INBOX);
+        MessageWindow window = store.getMessageWindow(folder, null, 2);
+        assertEquals(2, window.getMessages().length);
+        assertNotNull(window.getCursor());
+        window = store.getMessageWindow(folder, window.getCursor(), 2);
+        assertEquals(2, window.getMessages().length);
+        assertEquals(server.getUrl() + "/exchange/user/Inbox/message3.EML",
+                ((ExchangeMessage) window.getMessages()[0]).getUrl());
+        assertEquals(0, window.getMessages()[0].getMessageNumber());
+        window = store.getMessageWindow(folder, window.getCursor(), 2);
+        assertEquals(1, window.getMessages().length);
+        assertNull(window.getCursor());
+        assertFalse(folder.isOpen());
+        assertEquals(3, server.getRequests("SEARCH"));
+    }
+
+    @Test
+    public void windowMessagesCarryTheirUids() throws Exception {
+        for (int i = 1; i <= 3; i++) server.deliver();
+        store = server.connect(new Properties());
+        ExchangeFolder folder =
+                (ExchangeFolder) store.getFolder(ExchangeFolder.INBOX);
+        Message[] messages =
+                store.getMessageWindow(folder, null, 2).getMessages();
+        assertEquals(1, folder.getUID(messages[0]));
+        assertEquals(2, folder.getUID(messages[1]));
+        folder.open(Folder.READ_ONLY);
+        messages = store.getMessageWindow(folder, null, 3).getMessages();
+        assertEquals(3, folder.getUID(messages[2]));
+        assertEquals(1, folder.getUID(folder.getMessage(1)));
+    }
+
+    @Test
+    public void searchListsPagesOnlyUntilHitsAreFound() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            server.deliver((i == 3) ? "Urgent: message " + i : "Message " + i);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("mail.pop3." +
+                ExchangeConstants.PAGE_SIZE_PROPERTY, "2");
+        store = server.connect(properties);
+        Folder folder = store.getFolder(ExchangeFolder.INBOX);
+        folder.open(Folder.READ_ONLY);
+        assertEquals(6, folder.getMessageCount());
+        Message[] found = folder.search(new SubjectTerm("Urgent"));
+        assertEquals(1, found.length);
+        assertEquals(3, found[0].getMessageNumber());
+        // the first page, the search, and the page holding the hit
+        assertEquals(3, server.getRequests("SEARCH"));
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FolderWatcherTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private StandInServer server;
+
+    private ExchangeStore store;
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) store.close();
+        if (server != null) server.close();
+    }
+
+    @Test
+    public void subscriptionReportsNewMessages() throws Exception {
+        server = new StandInServer(true);
+        Folder folder = open();
+        waitFor("POLL", 1);
+        assertNewMessageReported(folder);
+        assertEquals(1, server.getRequests("SUBSCRIBE"));
+    }
+
+    @Test
+    public void probeReportsNewMessagesWithoutSubscriptions()
+            throws Exception {
+        server = new StandInServer(false);
+        Folder folder = open();
+        // one PROPFIND finds the inbox, the next sets the fingerprint
+        waitFor("PROPFIND", 2);
+        assertNewMessageReported(folder);
+        assertEquals(0, server.getRequests("POLL"));
+    }
+
+    @Test
+    public void closingStoreStopsWatcher() throws Exception {
+        server = new StandInServer(true);
+        open();
+        waitFor("POLL", 1);
+        store.close();
+        assertEquals(1, server.getRequests("UNSUBSCRIBE"));
+        // let a check already under way finish
+        Thread.sleep(100);
+        int polls = server.getRequests("POLL");
+        Thread.sleep(250);
+        assertEquals(polls, server.getRequests("POLL"));
+    }
+
+    private Folder open() throws Exception {
+        server.deliver();
+        Properties properties = new Properties();
+        properties.setProperty("mail.pop3." +
+                ExchangeConstants.WATCH_INTERVAL_PROPERTY, "50");
+        store = server.connect(properties);
+        Folder folder = store.getFolder(ExchangeFolder.INBOX);
+        folder.open(Folder.READ_ONLY);
+        assertEquals(1, folder.getMessageCount());
+        return folder;
+    }
+
+    private void assertNewMessageReported(Folder folder) throws Exception {
+        final CountDownLatch added = new CountDownLatch(1);
+        folder.addMessageCountListener(new MessageCountAdapter() {
+            public void messagesAdded(MessageCountEvent event) {
+                if (event.getMessages().length == 1) added.countDown();
+            }
+        });
+        server.deliver();
+        assertTrue("No message count event",
+                added.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(2, folder.getMessageCount());
+        assertTrue(folder.hasNewMessages());
+        assertEquals(2, ((ExchangeFolder) folder).getUID(
+                folder.getMessage(2)));
+    }
+
+    private void waitFor(String method, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (server.getRequests(method) < count) {
+            assertTrue("No " + method + " request",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,350 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package org.exjello.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Session;
+
+/**
+ * Local stand-in for the WebDAV interface of an Outlook Web Access server,
+ * answering the requests exJello makes to sign on with HTTP authentication,
+ * list a single inbox (honouring row ranges, creation date conditions,
+ * window cursors and subject searches), and watch it through subscriptions
+ * or its count properties.  Each connection carries one request.
+ */
+class StandInServer {
+
+    private static final String MAILBOX = "user";
+
+    private static final Pattern SINCE = Pattern.compile(
+            "\"DAV:creationdate\" &gt;= CAST\\(\"([^\"]+)\"");
+
+    private static final Pattern AFTER = Pattern.compile(
+            "\"DAV:creationdate\" &gt; CAST\\(\"([^\"]+)\".*" +
+                    "x0e230003\" &gt; (\\d+)\\)");
+
+    private static final Pattern SUBJECT = Pattern.compile(
+            "\"urn:schemas:mailheader:subject\" LIKE '%([^%']*)%'");
+
+    private static final Pattern RANGE = Pattern.compile(
+            "rows=(\\d+)-(\\d+)");
+
+    private final ServerSocket serverSocket;
+
+    private final boolean subscriptions;
+
+    private final List<String[]> messages = new ArrayList<String[]>();
+
+    private final Map<String, Integer> requests =
+            new HashMap<String, Integer>();
+
+    private boolean changed;
+
+    private int modification;
+
+    private volatile boolean closed;
+
+    /**
+     * Starts a server; without subscriptions, SUBSCRIBE requests are
+     * refused as by servers that do not support them.
+     */
+    public StandInServer(boolean subscriptions) throws IOException {
+        this.subscriptions = subscriptions;
+        serverSocket = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "stand-in-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Connects a store to the server, with the given properties in
+     * addition to those needed to reach it.
+     */
+    public ExchangeStore connect(Properties properties) throws Exception {
+        properties = new Properties(properties);
+        properties.setProperty(ExchangeConstants.MAILBOX_PROPERTY, MAILBOX);
+        properties.setProperty(ExchangeConstants.UNFILTERED_PROPERTY, "true");
+        properties.setProperty(ExchangeConstants.SESSION_TIMEOUT_PROPERTY,
+                "0");
+        ExchangeStore store = new ExchangeStore(
+                Session.getInstance(properties), null);
+        store.connect(getUrl(), "DOMAIN\\user", "secret");
+        return store;
+    }
+
+    /**
+     * Adds a message to the inbox, as delivered by the server.
+     */
+    public void deliver() {
+        deliver("Message");
+    }
+
+    public synchronized void deliver(String subject) {
+        int uid = messages.size() + 1;
+        messages.add(new String[] {
+            getInboxUrl() + "message" + uid + ".EML",
+            "2026-01-01T00:00:" + (uid < 10 ? "0" : "") + uid + ".000Z",
+            String.valueOf(uid), subject
+        });
+        changed = true;
+        modification++;
+    }
+
+    /**
+     * Returns the number of requests received with the given method.
+     */
+    public synchronized int getRequests(String method) {
+        Integer count = requests.get(method);
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private String getInboxUrl() {
+        return getUrl() + "/exchange/" + MAILBOX + "/Inbox/";
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        handle(socket);
+                    } catch (IOException ignore) {
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignore) { }
+                    }
+                }
+            }, "stand-in-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream input = socket.getInputStream();
+        String[] requestLine = readLine(input).split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(input)).length() > 0) {
+            int index = line.indexOf(':');
+            headers.put(line.substring(0, index).trim().toLowerCase(),
+                    line.substring(index + 1).trim());
+        }
+        byte[] body = new byte[0];
+        String length = headers.get("content-length");
+        if (length != null) {
+            body = new byte[Integer.parseInt(length)];
+            int read = 0;
+            while (read < body.length) {
+                int count = input.read(body, read, body.length - read);
+                if (count == -1) throw new IOException("Truncated request.");
+                read += count;
+            }
+        }
+        String method = requestLine[0];
+        String path = requestLine[1];
+        synchronized (this) {
+            Integer count = requests.get(method);
+            requests.put(method, Integer.valueOf(
+                    (count == null) ? 1 : count.intValue() + 1));
+        }
+        OutputStream output = socket.getOutputStream();
+        if ("OPTIONS".equals(method)) {
+            respond(output, 200, null, null);
+        } else if ("PROPFIND".equals(method) &&
+                path.equals("/exchange/" + MAILBOX)) {
+            respond(output, 207, null, getMailboxProperties());
+        } else if ("PROPFIND".equals(method)) {
+            respond(output, 207, null, getFolderProperties());
+        } else if ("SEARCH".equals(method)) {
+            String[] listing = getListing(new String(body, "UTF-8"),
+                    headers.get("range"));
+            respond(output, 207, listing[0], listing[1]);
+        } else if ("SUBSCRIBE".equals(method)) {
+            if (subscriptions) {
+                respond(output, 200, "Subscription-id: 1", null);
+            } else {
+                respond(output, 405, null, null);
+            }
+        } else if ("POLL".equals(method)) {
+            respond(output, 207, null, getPollResult());
+        } else if ("UNSUBSCRIBE".equals(method)) {
+            respond(output, 200, null, null);
+        } else {
+            respond(output, 405, null, null);
+        }
+    }
+
+    private String getMailboxProperties() {
+        return "<a:multistatus xmlns:a=\"DAV:\" " +
+                "xmlns:h=\"urn:schemas:httpmail:\"><a:response>" +
+                "<a:href>" + getUrl() + "/exchange/" + MAILBOX + "</a:href>" +
+                "<a:propstat><a:status>HTTP/1.1 200 OK</a:status><a:prop>" +
+                "<h:inbox>" + getInboxUrl() + "</h:inbox>" +
+                "</a:prop></a:propstat></a:response></a:multistatus>";
+    }
+
+    private synchronized String getFolderProperties() {
+        return "<a:multistatus xmlns:a=\"DAV:\" " +
+                "xmlns:h=\"urn:schemas:httpmail:\"><a:response>" +
+                "<a:href>" + getInboxUrl() + "</a:href>" +
+                "<a:propstat><a:status>HTTP/1.1 200 OK</a:status><a:prop>" +
+                "<a:visiblecount>" + messages.size() + "</a:visiblecount>" +
+                "<a:getlastmodified>2026-01-01T00:01:" +
+                (modification < 10 ? "0" : "") + modification +
+                ".000Z</a:getlastmodified>" +
+                "<h:unreadcount>" + messages.size() + "</h:unreadcount>" +
+                "<a:creationdate>2025-06-01T12:00:00.000Z</a:creationdate>" +
+                "</a:prop></a:propstat></a:response></a:multistatus>";
+    }
+
+    /**
+     * Returns the Content-Range header, if a range was requested, and the
+     * body of a listing.
+     */
+    private synchronized String[] getListing(String request, String range) {
+        Matcher matcher = SINCE.matcher(request);
+        String since = matcher.find() ? matcher.group(1) : null;
+        matcher = AFTER.matcher(request);
+        String after = null;
+        long afterUid = 0;
+        if (matcher.find()) {
+            after = matcher.group(1);
+            afterUid = Long.parseLong(matcher.group(2));
+        }
+        matcher = SUBJECT.matcher(request);
+        String subject = matcher.find() ? matcher.group(1) : null;
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String[] message : messages) {
+            if (since != null && message[1].compareTo(since) < 0) continue;
+            if (after != null && (message[1].compareTo(after) < 0 ||
+                    (message[1].equals(after) &&
+                            Long.parseLong(message[2]) <= afterUid))) {
+                continue;
+            }
+            if (subject != null && message[3].indexOf(subject) == -1) {
+                continue;
+            }
+            rows.add(message);
+        }
+        String contentRange = null;
+        matcher = (range == null) ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.find()) {
+            int total = rows.size();
+            int start = Math.min(Integer.parseInt(matcher.group(1)), total);
+            int end = Math.min(Integer.parseInt(matcher.group(2)) + 1, total);
+            rows = rows.subList(start, Math.max(start, end));
+            contentRange = "Content-Range: rows " + start + "-" +
+                    (Math.max(start, end) - 1) + "; total=" + total;
+        }
+        StringBuilder listing = new StringBuilder();
+        listing.append("<a:multistatus xmlns:a=\"DAV:\" xmlns:p=\"" +
+                "http://schemas.microsoft.com/mapi/proptag/\">");
+        for (String[] message : rows) {
+            listing.append("<a:response><a:href>").append(message[0]);
+            listing.append("</a:href><a:propstat>");
+            listing.append("<a:status>HTTP/1.1 200 OK</a:status><a:prop>");
+            listing.append("<a:creationdate>").append(message[1]);
+            listing.append("</a:creationdate><p:x0e230003>");
+            listing.append(message[2]).append("</p:x0e230003>");
+            listing.append("</a:prop></a:propstat></a:response>");
+        }
+        listing.append("</a:multistatus>");
+        return new String[] { contentRange, listing.toString() };
+    }
+
+    private synchronized String getPollResult() {
+        String status = changed ? "200 OK" : "204 No Content";
+        changed = false;
+        return "<a:multistatus xmlns:a=\"DAV:\"><a:response>" +
+                "<a:subscriptionID><a:li>1</a:li></a:subscriptionID>" +
+                "<a:status>HTTP/1.1 " + status + "</a:status>" +
+                "</a:response></a:multistatus>";
+    }
+
+    private static void respond(OutputStream output, int status,
+            String header, String body) throws IOException {
+        byte[] content = (body == null) ? new byte[0] :
+                ("<?xml version=\"1.0\"?>" + body).getBytes("UTF-8");
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 ").append(status).append(" Stand-in\r\n");
+        if (header != null) response.append(header).append("\r\n");
+        if (body != null) {
+            response.append("Content-Type: text/xml; charset=\"utf-8\"\r\n");
+        }
+        response.append("Content-Length: ").append(content.length);
+        response.append("\r\nConnection: close\r\n\r\n");
+        output.write(response.toString().getBytes("ISO-8859-1"));
+        output.write(content);
+        output.flush();
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+}